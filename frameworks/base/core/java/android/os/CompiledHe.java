@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Compiled form of an HE file: the int data sent to the RichTap HAL, ready to be played.
+ *
+ * <p>HE 1.0 is kept as the full {@code realPatternHeInfo}. HE 2.0 is kept as one int[] per
+ * wrapper with the pid/seq slots left at zero; they are filled on a copy for every play, so a
+ * compiled instance is immutable and can be shared between effects and threads.
+ *
+ * <p>Compiled files are kept in a process wide LRU keyed by the content hash of the HE string
+ * and bounded by {@link #CACHE_MAX_BYTES}, so effects created from the same asset string share
+ * one compiled copy. A cached file keeps its source string, compared on every hit, so a hash
+ * collision is a miss and never plays another file.
+ *
+ * <p>A compiled file can also be stored in a binary container that maps directly to these int
+ * arrays, so it can be loaded without any parsing. All values are little endian ints:
+ * <pre>
+ *   header:  magic, binary version, he version, pattern count, total duration, block count,
+ *            payload int count, CRC32 of the payload bytes
+ *   payload: block count times { int count n, n ints }
+ * </pre>
+ * HE 1.0 has a single block holding {@code realPatternHeInfo}, HE 2.0 has one block per wrapper.
+ *
+ * @hide
+ */
+final class CompiledHe {
+    private static final String TAG = "CompiledHe";
+    private static final boolean DEBUG = false;
+
+    /** Index of the sender pid in an HE 2.0 wrapper. */
+    static final int WRAPPER_PID_INDEX = 2;
+    /** Index of the sender seq in an HE 2.0 wrapper. */
+    static final int WRAPPER_SEQ_INDEX = 3;
+
+    /** "RTHE" read as a little endian int. */
+    static final int BINARY_MAGIC = 0x45485452;
+    static final int BINARY_VERSION = 1;
+    static final int BINARY_HEADER_INTS = 8;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_BINARY_VERSION = 1;
+    private static final int HEADER_HE_VERSION = 2;
+    private static final int HEADER_PATTERN_COUNT = 3;
+    private static final int HEADER_TOTAL_DURATION = 4;
+    private static final int HEADER_BLOCK_COUNT = 5;
+    private static final int HEADER_PAYLOAD_INTS = 6;
+    private static final int HEADER_CHECKSUM = 7;
+
+    /** Byte budget of the compiled HE cache, shared by the whole process. */
+    private static final int CACHE_MAX_BYTES = 512 * 1024;
+
+    private static final LruCache<Long, CompiledHe> sCache =
+            new LruCache<Long, CompiledHe>(CACHE_MAX_BYTES) {
+                @Override
+                protected int sizeOf(Long key, CompiledHe value) {
+                    return value.getByteSize() + value.mSource.length() * Character.BYTES;
+                }
+            };
+
+    final int mHeVersion;
+    /** HE 1.0 only. */
+    final int[] mHe1Data;
+    /** HE 2.0 only, pid/seq slots are zero. */
+    final int[][] mWrappers;
+    final int mPatternCount;
+    final int mTotalDuration;
+    /** The HE string compiled, compared on cache hits; null if loaded from binary. */
+    private final String mSource;
+
+    private CompiledHe(int heVersion, int[] he1Data, int[][] wrappers, int patternCount,
+            int totalDuration, String source) {
+        mHeVersion = heVersion;
+        mHe1Data = he1Data;
+        mWrappers = wrappers;
+        mPatternCount = patternCount;
+        mTotalDuration = totalDuration;
+        mSource = source;
+    }
+
+    /**
+     * Returns the compiled form of the given HE string, from the process cache if an identical
+     * string was compiled before.
+     *
+     * @return the compiled HE, or null if the string isn't compliance
+     */
+    @Nullable
+    static CompiledHe obtain(@Nullable String patternString) {
+        if (patternString == null) {
+            return null;
+        }
+        CompiledHe compiled = peek(patternString);
+        if (compiled != null) {
+            return compiled;
+        }
+        compiled = compile(patternString);
+        if (compiled != null) {
+            sCache.put(contentHash(patternString), compiled);
+        }
+        return compiled;
+    }
+
+    /** Parses and serializes the given HE string, bypassing the cache. */
+    @Nullable
+    static CompiledHe compile(@Nullable String patternString) {
+        HeParser.Result he = HeParser.parse(patternString);
+        if (he == null) {
+            return null;
+        }
+        int[][] wrappers = null;
+        int patternCount = 0;
+        if (he.mPatterns != null) {
+            patternCount = he.mPatterns.getPatternCount();
+            int budget = HapticPlayer.getWrapperBudgetHe_2_0();
+            ArrayList<int[]> wrapperList = new ArrayList<>();
+            for (int from = 0; from < patternCount; ) {
+                int to = HapticPlayer.getWrapperEndHe_2_0(he.mPatterns, from, patternCount, budget);
+                wrapperList.add(HapticPlayer.generateSerializationDataHe_2_0(
+                        HapticPlayer.FORMAT_VERSION, he.mHeVersion, patternCount,
+                        /* pid= */ 0, /* seq= */ 0, from, he.mPatterns, from, to));
+                from = to;
+            }
+            wrappers = wrapperList.toArray(new int[0][]);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "compiled he version:" + he.mHeVersion + " patterns:" + patternCount
+                    + " wrappers:" + (wrappers == null ? 0 : wrappers.length)
+                    + " totalDuration:" + he.mTotalDuration);
+        }
+        return new CompiledHe(he.mHeVersion, he.mHe1Data, wrappers, patternCount,
+                he.mTotalDuration, patternString);
+    }
+
+    /**
+     * Wraps HE 2.0 wrappers that were serialized while parsing {@code patternString}, see
+     * {@link HeWrapperPipeline}, and caches them like {@link #obtain} would.
+     */
+    @NonNull
+    static CompiledHe fromWrappers(int heVersion, @NonNull int[][] wrappers, int patternCount,
+            int totalDuration, @NonNull String patternString) {
+        CompiledHe compiled = new CompiledHe(heVersion, /* he1Data= */ null, wrappers,
+                patternCount, totalDuration, patternString);
+        sCache.put(contentHash(patternString), compiled);
+        return compiled;
+    }
+
+    /**
+     * Returns the cached compiled form of the given HE string without compiling it.
+     *
+     * @return the compiled HE, or null if it isn't cached
+     */
+    @Nullable
+    static CompiledHe peek(@NonNull String patternString) {
+        CompiledHe compiled = sCache.get(contentHash(patternString));
+        if (compiled != null && patternString.equals(compiled.mSource)) {
+            return compiled;
+        }
+        return null;
+    }
+
+    /**
+     * Loads a compiled HE from the binary container in {@code buffer}, from its position to its
+     * limit. The ints are bulk copied out of the buffer, nothing is parsed.
+     *
+     * @return the compiled HE, or null if the container is truncated or corrupted
+     */
+    @Nullable
+    static CompiledHe fromBinary(@NonNull ByteBuffer buffer) {
+        IntBuffer ints = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        if (ints.remaining() < BINARY_HEADER_INTS) {
+            Log.e(TAG, "binary he too short:" + ints.remaining());
+            return null;
+        }
+        int[] header = new int[BINARY_HEADER_INTS];
+        ints.get(header);
+        if (header[HEADER_MAGIC] != BINARY_MAGIC
+                || header[HEADER_BINARY_VERSION] != BINARY_VERSION) {
+            Log.e(TAG, "bad binary he magic or version:" + header[HEADER_BINARY_VERSION]);
+            return null;
+        }
+        int payloadInts = header[HEADER_PAYLOAD_INTS];
+        int blockCount = header[HEADER_BLOCK_COUNT];
+        if (payloadInts < 0 || payloadInts > ints.remaining() || blockCount < 0
+                || blockCount > payloadInts) {
+            Log.e(TAG, "binary he truncated, payload:" + payloadInts + " blocks:" + blockCount);
+            return null;
+        }
+
+        ByteBuffer payload = buffer.slice();
+        payload.position(BINARY_HEADER_INTS * Integer.BYTES);
+        payload.limit(payload.position() + payloadInts * Integer.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != header[HEADER_CHECKSUM]) {
+            Log.e(TAG, "binary he checksum mismatch");
+            return null;
+        }
+
+        int heVersion = header[HEADER_HE_VERSION];
+        int[][] blocks = new int[blockCount][];
+        int read = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (read >= payloadInts) {
+                Log.e(TAG, "binary he truncated at block:" + i);
+                return null;
+            }
+            int len = ints.get();
+            // compared to what is left rather than added to read, so it can't overflow
+            if (len <= 0 || len > payloadInts - read - 1) {
+                Log.e(TAG, "binary he bad block:" + i + " len:" + len);
+                return null;
+            }
+            read += 1 + len;
+            blocks[i] = new int[len];
+            ints.get(blocks[i]);
+        }
+        int[] he1Data = null;
+        int[][] wrappers = null;
+        if (heVersion == 1 && blockCount == 1) {
+            if (!checkHe1Data(blocks[0])) {
+                return null;
+            }
+            he1Data = blocks[0];
+        } else if (heVersion == 2) {
+            if (!checkWrappers(blocks, header[HEADER_PATTERN_COUNT])) {
+                return null;
+            }
+            wrappers = blocks;
+        } else {
+            Log.e(TAG, "binary he version:" + heVersion + " blocks:" + blockCount);
+            return null;
+        }
+        return new CompiledHe(heVersion, he1Data, wrappers, header[HEADER_PATTERN_COUNT],
+                header[HEADER_TOTAL_DURATION], /* source= */ null);
+    }
+
+    /**
+     * Returns whether {@code data} is well formed HE 1.0 data, laid out like
+     * {@link HeParser} builds it: the data type, then 1 to {@link HapticPlayer#MAX_EVENT_COUNT}
+     * events of {@link HapticPlayer#HE_VALUE_LENGTH} ints, each a transient or continuous one.
+     */
+    private static boolean checkHe1Data(int[] data) {
+        int eventCount = (data.length - 1) / HapticPlayer.HE_VALUE_LENGTH;
+        if (data[0] != HeParser.HE_1_0_DATA_TYPE
+                || data.length != 1 + eventCount * HapticPlayer.HE_VALUE_LENGTH
+                || eventCount < 1 || eventCount > HapticPlayer.MAX_EVENT_COUNT) {
+            Log.e(TAG, "binary he bad he 1.0 data, len:" + data.length);
+            return false;
+        }
+        for (int i = 0; i < eventCount; i++) {
+            int type = data[1 + i * HapticPlayer.HE_VALUE_LENGTH + HapticPlayer.HE_TYPE];
+            if (type != HapticPlayer.CONTINUOUS_EVENT && type != HapticPlayer.TRANSIENT_EVENT) {
+                Log.e(TAG, "binary he bad he 1.0 event:" + i + " type:" + type);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether {@code wrappers} are well formed HE 2.0 wrappers of {@code patternCount}
+     * patterns: each one has a full header, so {@link #getWrapper} can stamp it, and counts the
+     * total of patterns, and their own counts add up to it.
+     */
+    private static boolean checkWrappers(int[][] wrappers, int patternCount) {
+        int count = 0;
+        for (int i = 0; i < wrappers.length; i++) {
+            int[] wrapper = wrappers[i];
+            if (wrapper.length < HapticPlayer.HE2_0_WRAPPER_HEADER_LEN
+                    || (wrapper[4] & 0xFFFF) != (patternCount & 0xFFFF)) {
+                Log.e(TAG, "binary he bad wrapper:" + i + " len:" + wrapper.length);
+                return false;
+            }
+            count += wrapper[4] >>> 16;
+        }
+        if (count != patternCount) {
+            Log.e(TAG, "binary he pattern count:" + patternCount + " wrappers hold:" + count);
+            return false;
+        }
+        return true;
+    }
+
+    /** Serializes this compiled HE into the binary container read by {@link #fromBinary}. */
+    @NonNull
+    byte[] toBinary() {
+        int[][] blocks = mHe1Data != null ? new int[][]{mHe1Data}
+                : (mWrappers != null ? mWrappers : new int[0][]);
+        int payloadInts = 0;
+        for (int[] block : blocks) {
+            payloadInts += 1 + block.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((BINARY_HEADER_INTS + payloadInts) * Integer.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.position(BINARY_HEADER_INTS);
+        for (int[] block : blocks) {
+            ints.put(block.length);
+            ints.put(block);
+        }
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(BINARY_HEADER_INTS * Integer.BYTES);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ints.put(HEADER_MAGIC, BINARY_MAGIC);
+        ints.put(HEADER_BINARY_VERSION, BINARY_VERSION);
+        ints.put(HEADER_HE_VERSION, mHeVersion);
+        ints.put(HEADER_PATTERN_COUNT, mPatternCount);
+        ints.put(HEADER_TOTAL_DURATION, mTotalDuration);
+        ints.put(HEADER_BLOCK_COUNT, blocks.length);
+        ints.put(HEADER_PAYLOAD_INTS, payloadInts);
+        ints.put(HEADER_CHECKSUM, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    /** Returns a copy of the given HE 2.0 wrapper stamped with the sender pid/seq. */
+    int[] getWrapper(int index, int pid, int seq) {
+        int[] data = mWrappers[index].clone();
+        data[WRAPPER_PID_INDEX] = pid;
+        data[WRAPPER_SEQ_INDEX] = seq;
+        return data;
+    }
+
+    int getWrapperCount() {
+        return mWrappers == null ? 0 : mWrappers.length;
+    }
+
+    /** Approximate retained size, used as the cache weight. */
+    int getByteSize() {
+        int ints = 0;
+        if (mHe1Data != null) {
+            ints += mHe1Data.length;
+        }
+        if (mWrappers != null) {
+            for (int[] wrapper : mWrappers) {
+                ints += wrapper.length;
+            }
+        }
+        return ints * Integer.BYTES;
+    }
+
+    /** 64-bit FNV-1a hash over the chars of the HE string. */
+    static long contentHash(String patternString) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, n = patternString.length(); i < n; i++) {
+            hash ^= patternString.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
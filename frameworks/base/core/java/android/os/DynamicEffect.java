@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.content.res.AssetFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -25,6 +26,11 @@ import android.annotation.Nullable;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -45,6 +51,8 @@ public final class DynamicEffect extends VibrationEffect implements Parcelable {
 
     private  static final int PARCEL_TOKEN_DYNAMIC_EFFECT = 100;
 	String mPatternJson;
+    // compiled lazily on first play, then reused by every start()
+    private volatile CompiledHe mCompiled;
     /** @hide */
     public DynamicEffect(@NonNull Parcel in) {
     }
@@ -52,6 +60,10 @@ public final class DynamicEffect extends VibrationEffect implements Parcelable {
     public DynamicEffect(@NonNull String patternJson) {
         mPatternJson = new String(patternJson);
     }
+
+    private DynamicEffect(@NonNull CompiledHe compiled) {
+        mCompiled = compiled;
+    }
      
     public @Nullable
     static DynamicEffect create(@Nullable String json) {
@@ -64,6 +76,61 @@ public final class DynamicEffect extends VibrationEffect implements Parcelable {
         DynamicEffect ret = new DynamicEffect(json);
         return ret;
     }
+
+    /**
+     * Create an effect from a precompiled binary HE file, see {@link CompiledHe} for the layout.
+     * The file is memory mapped and its ints are copied out as they are, no parsing is done.
+     *
+     * @param fd file descriptor of the binary HE file, it is not closed by this method
+     * @return the effect, or null if the file can't be read or is corrupted
+     */
+    public @Nullable
+    static DynamicEffect createFromBinary(@NonNull FileDescriptor fd) {
+        return createFromBinary(fd, 0, -1);
+    }
+
+    /**
+     * Create an effect from a precompiled binary HE asset, which must be stored uncompressed in
+     * the apk so it can be memory mapped.
+     *
+     * @param afd asset file descriptor of the binary HE file, it is not closed by this method
+     * @return the effect, or null if the asset can't be read or is corrupted
+     */
+    public @Nullable
+    static DynamicEffect createFromBinary(@NonNull AssetFileDescriptor afd) {
+        return createFromBinary(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+    }
+
+    private static DynamicEffect createFromBinary(FileDescriptor fd, long offset, long length) {
+        // the channel shares fd, so it is deliberately left open for the caller to close
+        FileChannel channel = new FileInputStream(fd).getChannel();
+        try {
+            if (length < 0) {
+                length = channel.size() - offset;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            CompiledHe compiled = CompiledHe.fromBinary(buffer);
+            if (compiled == null) {
+                Log.e(TAG, "invalid binary he, do nothing");
+                return null;
+            }
+            return new DynamicEffect(compiled);
+        } catch (IOException e) {
+            Log.e(TAG, "map binary he failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Compile an HE string into the binary HE format loaded by {@link #createFromBinary}.
+     *
+     * @return the binary file content, or null if the pattern isn't compliance
+     */
+    public @Nullable
+    static byte[] compileToBinary(@Nullable String json) {
+        CompiledHe compiled = CompiledHe.compile(json);
+        return compiled == null ? null : compiled.toBinary();
+    }
     
     @Override
     public int describeContents() {
@@ -101,6 +168,43 @@ public final class DynamicEffect extends VibrationEffect implements Parcelable {
         return mPatternJson;
     }
 
+    /**
+     * Returns the compiled form of this effect, compiling it on first use. Effects created from
+     * the same HE string share one compiled copy through the {@link CompiledHe} cache.
+     *
+     * @return the compiled effect, or null if the pattern isn't compliance
+     * @hide
+     */
+    @Nullable
+    CompiledHe getCompiled() {
+        CompiledHe compiled = mCompiled;
+        if (compiled == null) {
+            compiled = CompiledHe.obtain(mPatternJson);
+            mCompiled = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the compiled form of this effect if it is already compiled or cached, without
+     * compiling it.
+     * @hide
+     */
+    @Nullable
+    CompiledHe peekCompiled() {
+        CompiledHe compiled = mCompiled;
+        if (compiled == null && mPatternJson != null) {
+            compiled = CompiledHe.peek(mPatternJson);
+            mCompiled = compiled;
+        }
+        return compiled;
+    }
+
+    /** @hide */
+    void setCompiled(@Nullable CompiledHe compiled) {
+        mCompiled = compiled;
+    }
+
     @Override
     public void validate() {
     }
@@ -129,6 +233,9 @@ public final class DynamicEffect extends VibrationEffect implements Parcelable {
     }
     @Override
     public String toString() {
+        if (mPatternJson == null && mCompiled != null) {
+            return "DynamicEffect{binary he version=" + mCompiled.mHeVersion + "}";
+        }
         return "DynamicEffect{mPatternJson=" +  mPatternJson+"}";
     }
 
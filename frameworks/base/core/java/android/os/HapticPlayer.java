@@ -14,30 +14,52 @@ import android.os.ServiceManager;
 import android.os.DynamicEffect;
 
 import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 @SuppressLint("NotCloseable")
 public class HapticPlayer {
     private static final String TAG = "HapticPlayer";
 
-    private boolean mStarted;
+    private volatile boolean mStarted;
+    private volatile boolean mPipelinedDispatch;
+    private final Object mParamLock = new Object();
+    // bumped by stop(), a send of an older play is dropped, or followed by a stop if it raced it
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // generation of the latest play started, a newer one must not be stopped by an old sender
+    private volatile int mStartedGeneration;
+    private volatile long mLastStopLatencyNanos;
+    private volatile long mLastStartOffsetNanos;
+    // startAsync plays not completed yet, guarded by itself
+    private final ArrayList<PlayCompletion> mCompletions = new ArrayList<>();
+    // guarded by mParamLock
+    private ParamUpdate mPendingParam;
+    private long mMergedUpdates;
+    private long mDroppedUpdates;
     private DynamicEffect mEffect;
     private final VibratorManager mVibratorManager;
     private final String mPackageName;
     private final Binder mToken;
-    private static boolean mAvailable = isSupportRichtap();
-    private static ExecutorService mExcutor = Executors.newSingleThreadExecutor();
+    private static boolean mAvailable = RichTapCapabilities.get().isAvailable();
+    // calls of one player run in order, players run in parallel
+    private final HapticSerialExecutor mExcutor = new HapticSerialExecutor(PRIORITY_NORMAL);
     private static AtomicInteger mSeq = new AtomicInteger();
+    private static AtomicInteger sNextHandle = new AtomicInteger(1);
+    // how long before its start time a scheduled trigger is sent, tracks the trigger call time
+    private static volatile long sTriggerLeadNanos = 2000000;
+    // scheduled triggers wait and are sent here, so no executor thread is held until their time
+    private static Handler sTriggerHandler;
 
  
     private static int mRichtapMajorVersion = 0x00;
     public static final int FORMAT_VERSION = 2;
+    /** 后台大段效果（如背景音乐振动），空闲时执行 */
+    public static final int PRIORITY_BULK = 0;
+    /** 默认优先级 */
+    public static final int PRIORITY_NORMAL = 1;
+    /** 短促的交互效果，优先于其他播放器执行 */
+    public static final int PRIORITY_INTERACTIVE = 2;
     public static final String VIBRATE_REASON = "DynamicEffect";
 
     public static final String PATTERN_KEY_PATTERN = "Pattern";
@@ -71,25 +93,39 @@ public class HapticPlayer {
     public static final int HE_VALUE_LENGTH = 7 + 3 * 16;
 
 
-    private  static final int MAX_PATERN_EVENT_LAST_TIME = 5000;
-    private  static final int MAX_PATERN_LAST_TIME = 50000;
-    private  static final int MAX_INTENSITY = 100;
-    private  static final int MAX_FREQ = 100;
+    static final int MAX_PATERN_EVENT_LAST_TIME = 5000;
+    static final int MAX_PATERN_LAST_TIME = 50000;
+    static final int MAX_INTENSITY = 100;
+    static final int MAX_FREQ = 100;
 
-    private static final int MAX_EVENT_COUNT = 16;
-    private static final int MAX_POINT_COUNT = 16;
+    static final int MAX_EVENT_COUNT = 16;
+    static final int MAX_POINT_COUNT = 16;
 
-    private static final String PATTERN_KEY_PATTERN_LIST = "PatternList";
+    static final String PATTERN_KEY_PATTERN_LIST = "PatternList";
 
-    private static final String HE_META_DATA_KEY = "Metadata";
-    private static final String HE_VERSION_KEY = "Version";
+    static final String HE_META_DATA_KEY = "Metadata";
+    static final String HE_VERSION_KEY = "Version";
 
     public static final String PATTERN_KEY_PATTERN_ABS_TIME = "AbsoluteTime";
     public static final String PATTERN_KEY_EVENT_VIB_ID = "Index";
 
-    private static final int VIBRATION_EFFECT_SUPPORT_NO = 2;
     public static final int ANDROID_VERSIONCODE_O = 26;
     public static final int HE2_0_PATTERN_WRAP_NUM = 10;
+    // formatVersion, heVersion, pid, seq, (patternNum << 16 | totalPattern)
+    static final int HE2_0_WRAPPER_HEADER_LEN = 5;
+    // patternNum and totalPattern are 16 bits each in the wrapper header
+    static final int HE2_0_MAX_WRAPPER_PATTERNS = 0xFFFF;
+    /**
+     * Int budget of one HE 2.0 wrapper, header included. Patterns are packed into a wrapper
+     * until the next one would overflow it; a value <= 0 packs a fixed
+     * {@link #HE2_0_PATTERN_WRAP_NUM} patterns per wrapper instead.
+     */
+    static final String PROPERTY_HE2_0_WRAPPER_BUDGET = "persist.vendor.richtap.he_wrapper_ints";
+    static final int HE2_0_DEFAULT_WRAPPER_BUDGET = 2048;
+    // a stop waits for at most one in flight wrapper, warn when that took longer than this
+    private static final long STOP_LATENCY_WARN_MS = 20;
+    // a scheduled start is a delayed message on the trigger thread, which spins its last 2ms
+    private static final long START_SPIN_NANOS = 2000000;
 
     private final boolean DEBUG = true;
 
@@ -106,262 +142,126 @@ public class HapticPlayer {
         this.mEffect = effect;
     }
 
-    /*
-     * 判断给定数据data，是否在(a,b)之间
-     * 返回true表示在区间内，返回false表示不在区间内
-     */
-    private boolean isInTheInterval(int data, int a, int b){
-        return data >= a && data <= b;
-    }
-    private static boolean isSupportRichtap() {
-        if (Build.VERSION.SDK_INT < ANDROID_VERSIONCODE_O){
-            return false;
-        }
-
-        int support = RichTapVibrationEffect.checkIfRichTapSupport();
-        if(support == VIBRATION_EFFECT_SUPPORT_NO){
-            return false;
-        }else{
-            return true;
-        }
-    }
-
     public static boolean isAvailable() {
         return mAvailable;
     }
 
     public static int getMajorVersion() {
-        if (Build.VERSION.SDK_INT < ANDROID_VERSIONCODE_O){
-            return 0x00;
-        }
-        int support = RichTapVibrationEffect.checkIfRichTapSupport();
-        if(support == VIBRATION_EFFECT_SUPPORT_NO){
-            return 0x00;
-        }else{
-            int clientCode = (support & (0x00FF << 16))>>16;
-            int majorVersion = (support & (0x00FF << 8))>>8;
-            int minorVersion = (support & (0x00FF << 0))>>0;
-
-            Log.d(TAG, "clientCode:"+clientCode+" majorVersion:"+
-                    majorVersion+" minorVersion:"+minorVersion);
-
-            return majorVersion;
-        }
+        return RichTapCapabilities.get().getMajorVersion();
     }
 
     public static int getMinorVersion() {
-        if (Build.VERSION.SDK_INT < ANDROID_VERSIONCODE_O){
-            return 0x00;
-        }
-        int support = RichTapVibrationEffect.checkIfRichTapSupport();
-        if(support == VIBRATION_EFFECT_SUPPORT_NO){
-            return 0x00;
-        }else{
-            int clientCode = (support & (0x00FF << 16))>>16;
-            int majorVersion = (support & (0x00FF << 8))>>8;
-            int minorVersion = (support & (0x00FF << 0))>>0;
+        return RichTapCapabilities.get().getMinorVersion();
+    }
 
-            Log.d(TAG, "clientCode:"+clientCode+" majorVersion:"+
-                    majorVersion+" minorVersion:"+minorVersion);
+    /**
+     * Serializes patterns [from, to) of {@code patterns} as one HE 2.0 wrapper into a single
+     * exactly sized array.
+     */
+    static int[] generateSerializationDataHe_2_0(int formatVersion ,int heVersion,int totalPattern,int pid,int seq,
+                                          int indexBase,HeEventTable patterns,int from,int to){
+        int[] data = new int[getSerializationDataLenHe_2_0(patterns, from, to)];
+        writeSerializationDataHe_2_0(data, 0, formatVersion, heVersion, totalPattern, pid, seq,
+                indexBase, patterns, from, to);
+        return data;
+    }
 
-            return minorVersion;
-        }
+    /** Returns the HE 2.0 wrapper int budget, see {@link #PROPERTY_HE2_0_WRAPPER_BUDGET}. */
+    static int getWrapperBudgetHe_2_0(){
+        return SystemProperties.getInt(PROPERTY_HE2_0_WRAPPER_BUDGET, HE2_0_DEFAULT_WRAPPER_BUDGET);
     }
-    private static boolean checkSdkSupport(int richTapMajorVersion,int richTapMinorVersion,int heVersion){
 
-        Log.d(TAG, "check richtap richTapMajorVersion:"+richTapMajorVersion +" heVersion:"+heVersion);
-        if(richTapMajorVersion < 0x16) {//v1.6
-            Log.e(TAG, "can not support he in richtap version:"+String.format("%x",richTapMajorVersion));
-            return false;
-        }else if(richTapMajorVersion == 0x16) {//v1.6
-            if(heVersion != 1){
-                Log.e(TAG, "RichTap version is "+
-                        String.format("%x",richTapMajorVersion) + " can not support he version: " + heVersion);
-                return false;
-            }
-        }else if(richTapMajorVersion == 0x17) {//v1.7
-            if(heVersion != 1 && heVersion != 2){
-                return false;
-            }
+    /**
+     * Returns whether a pattern of {@code patternLen} ints still fits in a wrapper currently
+     * holding {@code patternNum} patterns in {@code wrapperLen} ints. The first pattern always
+     * fits, a pattern larger than the budget gets a wrapper of its own.
+     */
+    static boolean fitsInWrapperHe_2_0(int wrapperLen, int patternNum, int patternLen, int budget){
+        if (patternNum == 0) {
+            return true;
         }
-
-        return true;
+        if (budget <= 0) {
+            return patternNum < HE2_0_PATTERN_WRAP_NUM;
+        }
+        return patternNum < HE2_0_MAX_WRAPPER_PATTERNS && wrapperLen + patternLen <= budget;
     }
-    private int[] getSerializationDataHe_1_0( String patternString){
-        int totalDuration;
-        int relativeTimeLast = 0;
-        int durationLast = 0;
-        int[] patternHeInfo = null;
-        try {
-            JSONObject hapticObject = new JSONObject(patternString);
-            JSONArray pattern = hapticObject.getJSONArray(PATTERN_KEY_PATTERN);
-            int eventNumberTmp = Math.min(pattern.length(), MAX_EVENT_COUNT);
-            int len = eventNumberTmp * HE_VALUE_LENGTH;
-            patternHeInfo = new int[len];
-
-            boolean isCompliance = true;
-
-            for (int ind = 0; ind < eventNumberTmp; ind++) {
-
-                JSONObject patternObject = pattern.getJSONObject(ind);
-                JSONObject eventObject = patternObject.getJSONObject(EVENT_KEY_EVENT);
-
-                //get type
-                String name = eventObject.getString(EVENT_KEY_HE_TYPE);
-                int type;
-                if (TextUtils.equals(EVENT_TYPE_HE_CONTINUOUS_NAME, name)) {
-                    type = CONTINUOUS_EVENT;
-                } else if (TextUtils.equals(EVENT_TYPE_HE_TRANSIENT_NAME, name)) {
-                    type = TRANSIENT_EVENT;
-                } else {
-                    //err data
-                    Log.e(TAG, "haven't get type value");
-                    isCompliance = false;
-                    break;
-                }
-                //get RelativeTime
-                if (!eventObject.has(EVENT_KEY_RELATIVE_TIME)) {
-                    Log.e(TAG, "event:" + ind + " don't have relativeTime parameters,set default:" + (ind * HE_DEFAULT_RELATIVE_TIME));
-                    relativeTimeLast = ind * HE_DEFAULT_RELATIVE_TIME;
-                } else {
-                    relativeTimeLast = eventObject.getInt(EVENT_KEY_RELATIVE_TIME);
-                }
-                if (!isInTheInterval(relativeTimeLast, 0, 50000)) {
-                    Log.e(TAG, "relativeTime must between 0 and 50000");
-                    isCompliance = false;
-                    break;
-                }
-                //get Parameters
-                JSONObject parametersObject = eventObject.getJSONObject(EVENT_KEY_HE_PARAMETERS);
-                int intensity = parametersObject.getInt(EVENT_KEY_HE_INTENSITY);
-                int frequency = parametersObject.getInt(EVENT_KEY_HE_FREQUENCY);
-                if (!isInTheInterval(intensity, 0, 100) || !isInTheInterval(frequency, 0, 100)) {
-                    Log.e(TAG, "intensity or frequency must between 0 and 100");
-                    isCompliance = false;
-                    break;
-                }
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_TYPE] = type;
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_RELATIVE_TIME] = relativeTimeLast;
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_INTENSITY] = intensity;
-                patternHeInfo[ind * HE_VALUE_LENGTH + HE_FREQUENCY] = frequency;
-
-                if (CONTINUOUS_EVENT == type) {
-                    //get Duration
-                    if (!eventObject.has(EVENT_KEY_DURATION)) {
-                        Log.e(TAG, "event:" + ind + " don't have duration parameters,set default:" + HE_DEFAULT_DURATION);
-                        durationLast = HE_DEFAULT_DURATION;
-                    } else {
-                        durationLast = eventObject.getInt(EVENT_KEY_DURATION);
-                    }
-                    if (!isInTheInterval(durationLast, 0, 5000)) {
-                        Log.e(TAG, "duration must be less than 5000");
-                        isCompliance = false;
-                        break;
-                    }
-                    patternHeInfo[ind * HE_VALUE_LENGTH + HE_DURATION] = durationLast;
-
-					patternHeInfo[ind * HE_VALUE_LENGTH + HE_VIB_INDEX] = 0;
-
-                    JSONArray curve = parametersObject.getJSONArray(EVENT_KEY_HE_CURVE);
-                    int pointCount = Math.min(curve.length(), MAX_POINT_COUNT);
-                    patternHeInfo[ind * HE_VALUE_LENGTH + HE_POINT_COUNT] = pointCount;
-
-                    //points data
-                    for (int i = 0; i < pointCount; i++) {
-                        JSONObject curveObject = curve.getJSONObject(i);
-                        //get curve points data
-                        int pointTime = curveObject.getInt(EVENT_KEY_HE_CURVE_POINT_TIME);
-                        int pointIntensity = (int) (curveObject.getDouble(EVENT_KEY_HE_INTENSITY) * 100);// * 100 ,方便传递数据
-                        int pointFrequency = curveObject.getInt(EVENT_KEY_HE_FREQUENCY);
-                        if (0 == i && (pointTime != 0 || pointIntensity != 0 || !isInTheInterval(pointFrequency, -100, 100))) {
-                            Log.e(TAG, "first point's time,  intensity must be 0, frequency must between -100 and 100");
-                            isCompliance = false;
-                            break;
-                        } else if ( 0 < i && i < pointCount - 1  && (!isInTheInterval(pointTime, 0, 5000) || !isInTheInterval(pointIntensity, 0, 100) || !isInTheInterval(pointFrequency, -100, 100))) {
-                            // intensity value has multi 100, so interval is 0~100
-                            Log.e(TAG, "point's time must be less than 5000, intensity must between 0~1, frequency must between -100 and 100");
-                            isCompliance = false;
-                            break;
-                        } else if (pointCount -1 == i && (pointTime != durationLast || pointIntensity != 0 || !isInTheInterval(pointFrequency, -100, 100))) {
-                            Log.e(TAG, "last point's time must equal with duration, and intensity must be 0, frequency must between -100 and 100");
-                            isCompliance = false;
-                            break;
-                        }
-
-                        patternHeInfo[ind * HE_VALUE_LENGTH + (HE_CURVE_POINT_0_TIME + i * 3)] = pointTime;
-                        patternHeInfo[ind * HE_VALUE_LENGTH + (HE_CURVE_POINT_0_INTENSITY + i * 3)] = pointIntensity;
-                        patternHeInfo[ind * HE_VALUE_LENGTH + (HE_CURVE_POINT_0_FREQUENCY + i * 3)] = pointFrequency;
-                    }
-                }
-                if (!isCompliance) break;
 
-                if (DEBUG) {
-                    for (int i = 0; i < HE_VALUE_LENGTH; i++) {
-                        Log.d(TAG, "patternHeInfo[" + ind + "][" + i + "]:" + patternHeInfo[ind * HE_VALUE_LENGTH + i]);
-                    }
-                }
-            }
-            //Compliance check
-            if (!isCompliance) {
-                Log.e(TAG, "current he file data, isn't compliance!!!!!!!");
-                return null;
+    /**
+     * Returns the end of the HE 2.0 wrapper starting at pattern {@code from}, packing as many of
+     * patterns [from, to) as {@code budget} allows.
+     */
+    static int getWrapperEndHe_2_0(HeEventTable patterns, int from, int to, int budget){
+        int len = HE2_0_WRAPPER_HEADER_LEN;
+        int end = from;
+        while (end < to) {
+            int patternLen = patterns.getPatternDataLen(end);
+            if (!fitsInWrapperHe_2_0(len, end - from, patternLen, budget)) {
+                break;
             }
+            len += patternLen;
+            end++;
+        }
+        return end;
+    }
 
-            int lastEventIndex = (eventNumberTmp - 1) * HE_VALUE_LENGTH + HE_TYPE;
-            if (CONTINUOUS_EVENT == patternHeInfo[lastEventIndex]) {
-                totalDuration = relativeTimeLast + durationLast;
-                Log.d(TAG, "last event type is continuous, totalDuration:" + totalDuration);
-            } else {
-                totalDuration = relativeTimeLast + 80;
-                Log.d(TAG, "last event type is transient, totalDuration:" + totalDuration);
-            }
-        }catch(Exception e){
-            e.printStackTrace();
-            return null;
+    /** Returns the exact int count of the HE 2.0 wrapper holding patterns [from, to). */
+    static int getSerializationDataLenHe_2_0(HeEventTable patterns, int from, int to){
+        int len = HE2_0_WRAPPER_HEADER_LEN;
+        for (int i = from; i < to; i++) {
+            len += patterns.getPatternDataLen(i);
         }
-        return patternHeInfo;
+        return len;
     }
 
-    int[] generateSerializationDataHe_2_0(int formatVersion ,int heVersion,int totalPattern,int pid,int seq,
-                                          int indexBase,Pattern[] pattern){
-        int totalPatternLen = 0;
-        int patternOffset = 5;
-        for(Pattern patternTmp:pattern){
-            totalPatternLen +=patternTmp.getPatternDataLen();
-        }
-        int[] data = new int[patternOffset+totalPatternLen];
-        Arrays.fill(data,0);
-
-        data[0] = formatVersion;
-        data[1] = heVersion;
-        data[2] = pid;
-        data[3] = seq;
-        data[4] |= totalPattern & 0x0000FFFF;
-        int patternNum = pattern.length;
-        data[4] |= ((patternNum << 16) & 0xFFFF0000);
-
-        int index = indexBase;
-        int[] patternData = null;
-
-        for(Pattern patternTmp:pattern){
-            patternData = patternTmp.generateSerializationPatternData(indexBase);
-            System.arraycopy(patternData,0,data,patternOffset,patternData.length);
-            patternOffset += patternData.length;
-            indexBase++;
+    /**
+     * Writes patterns [from, to) as one HE 2.0 wrapper into {@code data} at {@code offset} in a
+     * single pass, without any intermediate array. {@code data} must hold at least
+     * {@link #getSerializationDataLenHe_2_0} ints from {@code offset}; the slots are all
+     * overwritten, so a reused buffer needs no clearing.
+     *
+     * @return the offset right after the wrapper
+     */
+    static int writeSerializationDataHe_2_0(int[] data, int offset, int formatVersion, int heVersion,
+                                            int totalPattern, int pid, int seq, int indexBase,
+                                            HeEventTable patterns, int from, int to){
+        data[offset] = formatVersion;
+        data[offset + 1] = heVersion;
+        data[offset + 2] = pid;
+        data[offset + 3] = seq;
+        data[offset + 4] = (totalPattern & 0x0000FFFF) | (((to - from) << 16) & 0xFFFF0000);
+        offset += HE2_0_WRAPPER_HEADER_LEN;
+
+        for (int i = from; i < to; i++) {
+            offset = patterns.writePattern(data, offset, i, indexBase++);
         }
-        return data;
+        return offset;
     }
-    void sendPatternWrapper(int seq,int pid,int heVersion,int loop, int interval,
-                            int amplitude, int freq,int totalPatternNum,int patternIndexOffset,Pattern[] list){
-        int[] patternHe = generateSerializationDataHe_2_0(FORMAT_VERSION,heVersion,totalPatternNum,pid,
-                seq,patternIndexOffset,list);
+    /**
+     * Sends one wrapper of the play started at {@code generation}; {@code completion}, set on the
+     * last wrapper of a play only, receives the HAL result of the play. {@code timestamps}, set on
+     * the first wrapper only, carries the stage timestamps of the play to the service.
+     * @return false if the play was stopped since, nothing was sent then
+     */
+    boolean sendPatternWrapper(int generation, int loop, int interval, int amplitude, int freq, int[] patternHe,
+                               @Nullable PlayCompletion completion, @Nullable long[] timestamps){
+        if (isPlayStopped(generation)) {
+            Log.d(TAG, "play stopped, drop he wrapper");
+            return false;
+        }
         try {
             if (Build.VERSION.SDK_INT >= ANDROID_VERSIONCODE_O) {
-                VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeWithParam(patternHe,loop, interval, amplitude, freq);
+                if (timestamps != null) {
+                    timestamps[RichTapVibrationEffect.TS_SEND] = System.nanoTime();
+                }
+                VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeWithParam(patternHe,loop, interval, amplitude, freq, completion, timestamps);
+                if (completion != null) {
+                    completion.mSent = true;
+                }
                 VibrationAttributes atr = new VibrationAttributes.Builder().build();
                 CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
                 mVibratorManager.vibrate(Process.myUid(), mPackageName,
                         combinedEffect, VIBRATE_REASON, atr);
+                stopIfOvertaken(generation);
             }else{
                 Log.e(TAG, "The system is low than 26,does not support richTap!!");
             }
@@ -369,252 +269,80 @@ public class HapticPlayer {
             e.printStackTrace();
             Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
         }
+        return true;
     }
-    private void parseAndSendDataHe_2_0(int seq,int pid,int heVersion,int loop, int interval,
-                                        int amplitude, int freq,  String patternString){
-        int relativeTimeLast = 0;
-        int durationLast = 0;
-        byte[] patternHeInfo = null;
-        Pattern[] patternList = null;
-        try {
-            JSONObject hapticObject = new JSONObject(patternString);
-            JSONArray patternArray = hapticObject.getJSONArray(PATTERN_KEY_PATTERN_LIST);
-            int patternNum = patternArray.length();
-            patternHeInfo = new byte[patternNum * 64];
-
-            boolean isCompliance = true;
-            patternList = new Pattern[patternNum];
-            int wrapperOffset = 0,wrapperIndex = 0;
-            for (int ind = 0; ind < patternNum;) {
-                Pattern pattern = new Pattern();
-                JSONObject patternObject = patternArray.getJSONObject(ind);
-                int patternRelativeTime = patternObject.getInt(PATTERN_KEY_PATTERN_ABS_TIME);
-                pattern.mRelativeTime = patternRelativeTime;
-
-                int patternDurationTime = relativeTimeLast + durationLast;
-                if(ind > 0 && patternRelativeTime < patternDurationTime){
-                    Log.e(TAG, "Bad pattern relative time in int:"+ind);
-                    return;
-                }
-
-                JSONArray eventArray = patternObject.getJSONArray(PATTERN_KEY_PATTERN);
-                pattern.mEvent = new Event[eventArray.length()];
-
-                int eventRelativeTime = -1;
-                for (int event = 0; event < eventArray.length(); event++) {
-                    JSONObject eventObject = eventArray.getJSONObject(event);
-
-                    JSONObject eventTemp = eventObject.getJSONObject(EVENT_KEY_EVENT);
-                    //get type
-                    String name = eventTemp.getString(EVENT_KEY_HE_TYPE);
-                    int type;
-                    if (TextUtils.equals(EVENT_TYPE_HE_CONTINUOUS_NAME, name)) {
-                        type = CONTINUOUS_EVENT;
-                        pattern.mEvent[event] = new ContinuousEvent();
-                    } else if (TextUtils.equals(EVENT_TYPE_HE_TRANSIENT_NAME, name)) {
-                        type = TRANSIENT_EVENT;
-                        pattern.mEvent[event] = new TransientEvent();
-                    } else {
-                        //err data
-                        Log.e(TAG, "haven't get type value");
-                        isCompliance = false;
-                        break;
-                    }
 
-                    int vibId = eventTemp.getInt(PATTERN_KEY_EVENT_VIB_ID);
-                    pattern.mEvent[event].mVibId = (byte)vibId;
-                    //get RelativeTime
-                    if (!eventTemp.has(EVENT_KEY_RELATIVE_TIME)) {
-                        Log.e(TAG, "event:" + ind + " don't have relativeTime parameters,BAD he!");
-                        //relativeTimeLast = ind * HE_DEFAULT_RELATIVE_TIME;
-                        return;
-                    } else {
-                        relativeTimeLast = eventTemp.getInt(EVENT_KEY_RELATIVE_TIME);
-
-                        if(event > 0 && relativeTimeLast < eventRelativeTime){
-                            Log.e(TAG, "pattern ind:"+ind+" event:"+event+" relative time is not right!");
-                            return;
-                        }
-                        eventRelativeTime = relativeTimeLast;
-                    }
-                    if (!isInTheInterval(relativeTimeLast, 0, 50000)) {
-                        Log.e(TAG, "relativeTime must between 0 and 50000");
-                        isCompliance = false;
-                        break;
-                    }
-                    //get Parameters
-                    JSONObject parametersObject = eventTemp.getJSONObject(EVENT_KEY_HE_PARAMETERS);
-                    int intensity = parametersObject.getInt(EVENT_KEY_HE_INTENSITY);
-                    int frequency = parametersObject.getInt(EVENT_KEY_HE_FREQUENCY);
-                    if (!isInTheInterval(intensity, 0, 100) || !isInTheInterval(frequency, 0, 100)) {
-                        Log.e(TAG, "intensity or frequency must between 0 and 100");
-                        isCompliance = false;
-                        break;
-                    }
-                    pattern.mEvent[event].mType = type;
-                    pattern.mEvent[event].mRelativeTime = relativeTimeLast;
-                    pattern.mEvent[event].mIntensity = intensity;
-                    pattern.mEvent[event].mFreq = frequency;
-
-                    if (CONTINUOUS_EVENT == type) {
-                        //get Duration
-                        if (!eventTemp.has(EVENT_KEY_DURATION)) {
-                            Log.e(TAG, "event:" + ind + " don't have duration parameters");
-                            //durationLast = HE_DEFAULT_DURATION;
-                            return;
-                        } else {
-                            durationLast = eventTemp.getInt(EVENT_KEY_DURATION);
-                        }
-                        if (!isInTheInterval(durationLast, 0, 5000)) {
-                            Log.e(TAG, "duration must be less than 5000");
-                            isCompliance = false;
-                            break;
-                        }
-                        //patternHeInfo[ind * HE_VALUE_LENGTH + HE_DURATION] = durationLast;
-                        pattern.mEvent[event].mDuration = durationLast;
-
-                        JSONArray curve = parametersObject.getJSONArray(EVENT_KEY_HE_CURVE);
-                        ((ContinuousEvent)pattern.mEvent[event]).mPointNum = (byte)curve.length();
-                        Point[] piontArray = new Point[curve.length()];
-                        //
-                        //  points data
-                        int prevPointTime = -1;
-                        int i = 0;
-                        int pointLastTime = 0;
-                        for ( ; i < curve.length(); i++) {
-                            JSONObject curveObject = curve.getJSONObject(i);
-                            piontArray[i] = new Point();
-                            //get curve points data
-                            int pointTime = curveObject.getInt(EVENT_KEY_HE_CURVE_POINT_TIME);
-                            int pointIntensity = (int) (curveObject.getDouble(EVENT_KEY_HE_INTENSITY) * 100);// * 100 ,方便传递数据
-                            int pointFrequency = curveObject.getInt(EVENT_KEY_HE_FREQUENCY);
-
-                            if(i==0 && pointTime != 0 ){
-                                Log.d(TAG, "time of first point is not 0,bad he!");
-                                return;
-                            }
-
-                            if((i > 0) && (pointTime < prevPointTime)){
-                                Log.d(TAG, "point times did not arrange in order,bad he!");
-                                return;
-                            }
-                            prevPointTime = pointTime;
-
-                            piontArray[i].mTime = pointTime;
-                            piontArray[i].mIntensity = pointIntensity;
-                            piontArray[i].mFreq = pointFrequency;
-                            pointLastTime = pointTime;
-                        }
-                        if(pointLastTime != durationLast){
-                            Log.e(TAG, "event:" + ind + " point last time do not match duration parameter");
-                            return;
-                        }
-                        if(piontArray.length > 0) {
-                            ((ContinuousEvent) pattern.mEvent[event]).mPoint = piontArray;
-                        }else{
-                            Log.d(TAG, "continuous event has nothing in point");
-                            isCompliance = false;
-                        }
-                    }
-                    if (!isCompliance) break;
-
-                    if (DEBUG) {
-                        for (int i = 0; i < HE_VALUE_LENGTH; i++) {
-                            Log.d(TAG, "patternHeInfo[" + ind + "][" + i + "]:" + patternHeInfo[ind * HE_VALUE_LENGTH + i]);
-                        }
-                    }
-                }
-                //Compliance check
-                if (!isCompliance) {
-                    Log.e(TAG, "current he file data, isn't compliance!!!!!!!");
-                    return;
-                }
-                patternList[ind] = pattern;
-                ind++;
-                if(ind >= HE2_0_PATTERN_WRAP_NUM*(wrapperIndex+1)){
-                    Pattern[] patternWrapper = new Pattern[HE2_0_PATTERN_WRAP_NUM];
-                    for(int i = 0;i<HE2_0_PATTERN_WRAP_NUM;i++){
-                        patternWrapper[i] = patternList[wrapperOffset + i];
-                    }
-                    sendPatternWrapper(seq,pid,heVersion,loop, interval,
-                            amplitude, freq,patternNum,wrapperOffset,patternWrapper);
-                    wrapperIndex++;
-                    wrapperOffset = HE2_0_PATTERN_WRAP_NUM*wrapperIndex;
-                }
+    /**
+     * Called after a send of the play started at {@code generation}: if stop() ran during the
+     * call its stop may have reached the service first, so it is sent again unless a newer play
+     * was started since. Later wrappers of a stopped HE 2.0 stream are dropped by the service,
+     * this covers the first one and triggers.
+     */
+    private void stopIfOvertaken(int generation) {
+        if (isPlayStopped(generation) && mStartedGeneration == generation) {
+            Log.d(TAG, "play stopped while sending, stop again");
+            sendStop();
+        }
+    }
 
-            }
-            if(wrapperOffset < patternList.length){
-                int endWapperNum = patternList.length - wrapperOffset;
-                Pattern[] patternWrapper = new Pattern[endWapperNum];
-                for(int i = 0;i<patternWrapper.length;i++){
-                    patternWrapper[i] = patternList[wrapperOffset + i];
-                }
-                sendPatternWrapper(seq,pid,heVersion,loop, interval,
-                        amplitude, freq,patternNum,wrapperOffset,patternWrapper);
-            }
-        }catch(Exception e){
+    private void sendStop() {
+        try {
+            VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeParameter(0, 0, 0);
+            CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
+            mVibratorManager.vibrate(Process.myUid(), mPackageName,
+                        combinedEffect, VIBRATE_REASON, null);
+        }catch (Exception e){
             e.printStackTrace();
+            Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
         }
+    }
 
+    /** Returns whether the play started at {@code generation} was stopped since. */
+    boolean isPlayStopped(int generation) {
+        return generation != mGeneration.get();
+    }
+
+    private void sendDataHe_2_0(int generation,int seq,int pid,int loop, int interval,
+                                int amplitude, int freq, CompiledHe he, @Nullable PlayCompletion completion,
+                                @Nullable long[] timestamps){
+        int sent = 0;
+        int count = he.getWrapperCount();
+        while (sent < count && sendPatternWrapper(generation, loop, interval, amplitude, freq,
+                he.getWrapper(sent, pid, seq), sent == count - 1 ? completion : null,
+                sent == 0 ? timestamps : null)) {
+            sent++;
+        }
+        if(DEBUG){
+            Log.d(TAG, "he patterns:" + he.mPatternCount + " sent in transactions:"
+                    + sent + "/" + he.getWrapperCount() + " bytes:" + he.getByteSize());
+        }
     }
     public void applyPatternHeWithString(@Nullable String patternString, int loop,int interval,int amplitude,int freq){
+        applyCompiledHe(mGeneration.get(), CompiledHe.obtain(patternString), loop, interval, amplitude, freq, null, null);
+    }
+
+    private void applyCompiledHe(int generation, @Nullable CompiledHe he, int loop,int interval,int amplitude,int freq,
+                                 @Nullable PlayCompletion completion, @Nullable long[] timestamps){
         Log.d(TAG, "play new he api");
         if (loop < 1){
             Log.e(TAG, "The minimum count of loop pattern is 1");
             return;
         }
+        if (he == null) {
+            Log.e(TAG, "current he file data, isn't compliance!!!!!!!");
+            return;
+        }
         try{
-            JSONObject hapticObject = new JSONObject(patternString);
-
-            int heVersion = 0;
-            if(mAvailable) {
-                JSONObject metaData = hapticObject.getJSONObject(HE_META_DATA_KEY);
-                heVersion = metaData.getInt(HE_VERSION_KEY);
-                int richTapMajorVersion = getMajorVersion();
-                int richTapMinorVersion = getMinorVersion();
-                boolean checkPass = checkSdkSupport(richTapMajorVersion,richTapMinorVersion, heVersion);
-
-                if (!checkPass) {
-                    Log.e(TAG, "richtap version check failed, richTapMajorVersion:" +
-                            String.format("%x02", richTapMajorVersion) + " heVersion:" + heVersion);
-                    return;
-                }
+            int heVersion = checkHeVersion(he.mHeVersion);
+            if(heVersion < 0){
+                return;
             }
-
-            int[] patternHeInfo = null;
-            Pattern[] patternList = null;
-            int[] patternHe = null;
-
             if(heVersion == 1){
-                patternHeInfo = getSerializationDataHe_1_0(patternString);
-                if(patternHeInfo == null){
-                    Log.e(TAG, "serialize he failed!! ,heVersion:"+heVersion);
-                    return;
-                }
-                int len = patternHeInfo.length;
-                try {
-                    if (Build.VERSION.SDK_INT >= ANDROID_VERSIONCODE_O) {
-                        int[] realPatternHeInfo = null;
-                        realPatternHeInfo = new int[len + 1];
-                        realPatternHeInfo[0] = 0x3; // 0x3: HE1.0 which support 16 curve points
-                        System.arraycopy(patternHeInfo, 0, realPatternHeInfo, 1, patternHeInfo.length);
-
-                        VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeWithParam(realPatternHeInfo,loop, interval, amplitude, freq);
-                        VibrationAttributes atr = new VibrationAttributes.Builder().build();
-                        CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
-                        mVibratorManager.vibrate(Process.myUid(), mPackageName,
-                                combinedEffect, VIBRATE_REASON, atr);
-                    }else{
-                        Log.e(TAG, "The system is low than 26,does not support richTap!!");
-                    }
-                }catch (Exception e){
-                    e.printStackTrace();
-                    Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
-                }
+                sendPatternWrapper(generation, loop, interval, amplitude, freq, he.mHe1Data, completion, timestamps);
             }else if(heVersion == 2){
                 int seq = mSeq.getAndIncrement();
                 int pid = android.os.Process.myPid();
-                parseAndSendDataHe_2_0(seq,pid,heVersion,loop, interval, amplitude,freq,patternString);
+                sendDataHe_2_0(generation,seq,pid,loop, interval, amplitude,freq,he,completion,timestamps);
             }else{
                 Log.e(TAG, "unsupport he version heVersion:"+heVersion);
             }
@@ -623,6 +351,98 @@ public class HapticPlayer {
         }
     }
 
+    /**
+     * Checks that the RichTap firmware can play the given he version.
+     * @return heVersion if supported, -1 if not, 0 if richtap is not available
+     */
+    private int checkHeVersion(int heVersion){
+        if(!mAvailable) {
+            return 0;
+        }
+        RichTapCapabilities capabilities = RichTapCapabilities.get();
+        if (!capabilities.supportsHeVersion(heVersion)) {
+            Log.e(TAG, "richtap version check failed, richTapMajorVersion:" +
+                    String.format("%x02", capabilities.getMajorVersion()) + " heVersion:" + heVersion);
+            return -1;
+        }
+        return heVersion;
+    }
+
+    /**
+     * 设置播放器优先级，繁忙时高优先级播放器的调用先执行；同一播放器的调用始终按顺序执行。
+     * @param priority {@link #PRIORITY_BULK}, {@link #PRIORITY_NORMAL} 或 {@link #PRIORITY_INTERACTIVE}
+     */
+    public void setPriority(int priority) {
+        if (priority < PRIORITY_BULK || priority > PRIORITY_INTERACTIVE) {
+            Log.e(TAG, "wrong priority:" + priority);
+            return;
+        }
+        mExcutor.setPriority(priority);
+    }
+
+    /**
+     * 设置是否流水线发送HE 2.0数据：首次播放未编译的HE 2.0效果时，边解析边发送，
+     * 第一个wrapper解析完即开始振动，无需等待整个文件解析完成。
+     * @param enabled true开启，默认关闭
+     */
+    public void setPipelinedDispatch(boolean enabled) {
+        mPipelinedDispatch = enabled;
+    }
+
+    /**
+     * Plays mEffect, compiling it first or, in pipelined mode, while sending it.
+     * @param timestamps stage timestamps of the play, see {@link RichTapVibrationEffect#TS_COUNT}
+     */
+    private void applyEffect(int generation, int loop, int interval, int amplitude, int freq,
+                             @Nullable PlayCompletion completion, @NonNull long[] timestamps){
+        timestamps[RichTapVibrationEffect.TS_DEQUEUE] = System.nanoTime();
+        if(isPlayStopped(generation)){
+            Log.d(TAG, "play stopped before it started");
+            return;
+        }
+        if(mPipelinedDispatch && mEffect.mPatternJson != null && mEffect.peekCompiled() == null
+                && applyPipelinedHe(generation, loop, interval, amplitude, freq, completion, timestamps)){
+            return;
+        }
+        CompiledHe compiled = mEffect.getCompiled();
+        if(compiled == null){
+            Log.d(TAG, "pattern is null,can not play!");
+            return;
+        }
+        timestamps[RichTapVibrationEffect.TS_COMPILED] = System.nanoTime();
+        applyCompiledHe(generation, compiled, loop,interval,amplitude,freq,completion,timestamps);
+    }
+
+    /**
+     * Sends the HE 2.0 wrappers of mEffect while it is being parsed.
+     * @return false if mEffect is not an HE 2.0 file, nothing was sent then
+     */
+    private boolean applyPipelinedHe(int generation, int loop, int interval, int amplitude, int freq,
+                                     @Nullable PlayCompletion completion, @NonNull long[] timestamps){
+        // every wrapper header carries the total pattern count, so count them up front
+        HeParser.Header header = HeParser.scan(mEffect.mPatternJson);
+        if(header == null || header.mHeVersion != 2 || header.mPatternCount == 0 || loop < 1){
+            return false;
+        }
+        Log.d(TAG, "play pipelined he, patterns:" + header.mPatternCount);
+        int heVersion = checkHeVersion(header.mHeVersion);
+        if(heVersion != header.mHeVersion){
+            if(heVersion == 0){
+                Log.e(TAG, "unsupport he version heVersion:"+heVersion);
+            }
+            return true;
+        }
+        int seq = mSeq.getAndIncrement();
+        int pid = android.os.Process.myPid();
+        CompiledHe compiled = HeWrapperPipeline.play(this, mEffect.mPatternJson, header,
+                generation, pid, seq, loop, interval, amplitude, freq, completion, timestamps);
+        if(compiled == null && !isPlayStopped(generation)){
+            Log.e(TAG, "current he file data, isn't compliance!!!!!!!");
+        }
+        mEffect.setCompiled(compiled);
+        return true;
+    }
+
     public int getRealLooper(int looper){
         if(looper < 0 ){
             if(looper == -1){
@@ -649,19 +469,18 @@ public class HapticPlayer {
                 Log.e(TAG, "looper is not correct realLooper:"+realLooper);
                 return;
             }
+            final long[] timestamps = newPlayTimestamps();
+            sealPendingParam();
+            mStarted = true;
+            final int generation = mGeneration.get();
+            mStartedGeneration = generation;
             mExcutor.execute(new Runnable(){
                 @Override
                 public void run() {
                     Log.d(TAG, "haptic play start!");
                     long startRunTime = System.currentTimeMillis();
                     try {
-                        mStarted = true;
-						String patternJson = mEffect.getPatternInfo();
-						if(patternJson == null){
-							Log.d(TAG, "pattern is null,can not play!");
-							return;
-						}
-                        applyPatternHeWithString(patternJson, realLooper,0,255,0);
+                        applyEffect(generation, realLooper, 0, 255, 0, null, timestamps);
                     }catch (Exception e){
                         e.printStackTrace();
                         Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
@@ -700,19 +519,18 @@ public class HapticPlayer {
                 Log.e(TAG, "looper is not correct realLooper:"+realLooper);
                 return;
             }
+            final long[] timestamps = newPlayTimestamps();
+            sealPendingParam();
+            mStarted = true;
+            final int generation = mGeneration.get();
+            mStartedGeneration = generation;
             mExcutor.execute(new Runnable(){
                 @Override
                 public void run() {
                     Log.d(TAG, "haptic play start!");
                     long startRunTime = System.currentTimeMillis();
                     try {
-                        mStarted = true;
-                        String patternJson = mEffect.getPatternInfo();
-                        if(patternJson == null){
-                            Log.d(TAG, "pattern is null,can not play!");
-                            return;
-                        }
-                        applyPatternHeWithString(patternJson, realLooper,interval,amplitude,0);
+                        applyEffect(generation, realLooper, interval, amplitude, 0, null, timestamps);
                     }catch (Exception e){
                         e.printStackTrace();
                         Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
@@ -734,24 +552,53 @@ public class HapticPlayer {
      * @param freq 振动频率, 此参数用于修饰HE文件，进行整体的频率信号进行调整;
      */
     public void start(final int loop, final int interval, final int amplitude, final int freq) {
+        startInternal(loop, interval, amplitude, freq, null);
+    }
+
+    /**
+     * 开始播放效果，参数同{@link #start(int, int, int, int)}。
+     * 返回的Future在效果播放完成、被停止或无法播放时完成，可用于串联多个效果而无需轮询或sleep。
+     * @return 播放结果，包含底层返回码和播放时长
+     */
+    @NonNull
+    public CompletableFuture<PlayResult> startAsync(int loop, int interval, int amplitude, int freq) {
+        PlayCompletion completion = new PlayCompletion(this);
+        if (!startInternal(loop, interval, amplitude, freq, completion)) {
+            completion.finishUnsent();
+        }
+        return completion.mFuture;
+    }
+
+    private boolean startInternal(final int loop, final int interval, final int amplitude, final int freq,
+                                  @Nullable final PlayCompletion completion) {
         Log.d(TAG, "start with loop:"+ loop+" interval:"+interval+" amplitude:"+amplitude + " freq:"+freq);
         boolean checkResult = checkParam(interval, amplitude, freq);
         
         if(!checkResult){
             Log.e(TAG, "wrong start param");
-            return;
+            return false;
         }
 
         if(mEffect == null){
             Log.e(TAG, "effect is null,do nothing");
-            return;
+            return false;
         }
 
         if (Build.VERSION.SDK_INT >= ANDROID_VERSIONCODE_O) {
             final int realLooper = getRealLooper(loop);
             if(realLooper < 0){
                 Log.e(TAG, "looper is not correct realLooper:"+realLooper);
-                return;
+                return false;
+            }
+            final long[] timestamps = newPlayTimestamps();
+            sealPendingParam();
+            mStarted = true;
+            final int generation = mGeneration.get();
+            mStartedGeneration = generation;
+            if (completion != null) {
+                synchronized (mCompletions) {
+                    mCompletions.add(completion);
+                }
             }
             mExcutor.execute(new Runnable(){
                 @Override
@@ -759,26 +606,330 @@ public class HapticPlayer {
                     Log.d(TAG, "haptic play start!");
                     long startRunTime = System.currentTimeMillis();
                     try {
-                        mStarted = true;
-                        String patternJson = mEffect.getPatternInfo();
-                        if(patternJson == null){
-                            Log.d(TAG, "pattern is null,can not play!");
-                            return;
-                        }
-                        applyPatternHeWithString(patternJson, realLooper,interval,amplitude,freq);
+                        applyEffect(generation, realLooper, interval, amplitude, freq, completion, timestamps);
                     }catch (Exception e){
                         e.printStackTrace();
                         Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
                     }
+                    if (completion != null && !completion.mSent) {
+                        completion.finishUnsent();
+                    }
                     long useTime = System.currentTimeMillis()-startRunTime;
                     Log.d(TAG, "run vibrate thread use time:"+ useTime);
                 }
             });
+            return true;
         }else{
             Log.e(TAG, "The system is low than 26,does not support richTap!!");
+            return false;
+        }
+    }
+
+    /** Returns the stage timestamps of a new play, with its start time taken. */
+    private static long[] newPlayTimestamps() {
+        long[] timestamps = new long[RichTapVibrationEffect.TS_COUNT];
+        timestamps[RichTapVibrationEffect.TS_START] = System.nanoTime();
+        return timestamps;
+    }
+
+    /**
+     * {@link #startAsync}的播放结果
+     */
+    public static final class PlayResult {
+        private final int mResult;
+        private final boolean mStopped;
+        private final long mPlayTimeMillis;
+
+        PlayResult(int result, boolean stopped, long playTimeMillis) {
+            mResult = result;
+            mStopped = stopped;
+            mPlayTimeMillis = playTimeMillis;
+        }
+
+        /** 底层返回码，效果被停止或未能播放时无意义 */
+        public int getResult() {
+            return mResult;
+        }
+
+        /** 效果是否在播放完成前被停止、被其他振动打断或未能播放 */
+        public boolean isStopped() {
+            return mStopped;
+        }
+
+        /** 从发送到完成的播放时长，单位ms */
+        public long getPlayTimeMillis() {
+            return mPlayTimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "PlayResult{result=" + mResult + ", stopped=" + mStopped
+                    + ", playTimeMillis=" + mPlayTimeMillis + "}";
+        }
+    }
+
+    /**
+     * Receives the completion result of one {@link #startAsync} play from the vibrator service.
+     * Completed at most once: by the service, or as stopped when nothing was sent or on stop().
+     */
+    static final class PlayCompletion extends ResultReceiver {
+        final CompletableFuture<PlayResult> mFuture = new CompletableFuture<>();
+        private final HapticPlayer mPlayer;
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        // set once a wrapper carrying this completion went to the service
+        volatile boolean mSent;
+
+        PlayCompletion(HapticPlayer player) {
+            super(null);
+            mPlayer = player;
+        }
+
+        @Override
+        protected void onReceiveResult(int resultCode, Bundle resultData) {
+            long playTime = resultData == null ? SystemClock.elapsedRealtime() - mStartTime
+                    : resultData.getLong(RichTapVibrationEffect.EXTRA_PLAY_TIME_MS);
+            boolean stopped = resultData != null
+                    && resultData.getBoolean(RichTapVibrationEffect.EXTRA_STOPPED);
+            finish(new PlayResult(resultCode, stopped, playTime));
+        }
+
+        void finishUnsent() {
+            finish(new PlayResult(0, /* stopped= */ true, 0));
+        }
+
+        private void finish(PlayResult result) {
+            synchronized (mPlayer.mCompletions) {
+                mPlayer.mCompletions.remove(this);
+            }
+            mFuture.complete(result);
         }
     }
     
+    /**
+     * 预加载效果：编译效果并注册到系统振动服务，之后通过{@link #trigger}只需发送句柄和播放参数，
+     * 适用于需要低延迟反复播放的效果（如射击）。在调用线程上同步执行。
+     * @param effect 要预加载的效果
+     * @return 效果句柄，失败时返回-1
+     */
+    public int prepare(@NonNull DynamicEffect effect) {
+        if (Build.VERSION.SDK_INT < ANDROID_VERSIONCODE_O) {
+            Log.e(TAG, "The system is low than 26,does not support richTap!!");
+            return -1;
+        }
+        return prepareCompiled(effect.getCompiled());
+    }
+
+    private int prepareCompiled(@Nullable CompiledHe compiled) {
+        if (compiled == null) {
+            Log.e(TAG, "current he file data, isn't compliance!!!!!!!");
+            return -1;
+        }
+        int heVersion = checkHeVersion(compiled.mHeVersion);
+        int[][] blocks = heVersion == 1 ? new int[][]{compiled.mHe1Data}
+                : (heVersion == 2 ? compiled.mWrappers : null);
+        if (blocks == null || blocks.length == 0) {
+            Log.e(TAG, "unsupport he version heVersion:" + compiled.mHeVersion);
+            return -1;
+        }
+        int handle = sNextHandle.getAndIncrement();
+        if (!sendPreparedHe(handle, heVersion, blocks)) {
+            return -1;
+        }
+        Log.d(TAG, "prepared he handle:" + handle + " blocks:" + blocks.length);
+        return handle;
+    }
+
+    /**
+     * 释放{@link #prepare}注册的效果
+     * @param handle 效果句柄
+     */
+    public void release(int handle) {
+        if (handle <= 0) {
+            return;
+        }
+        sendPreparedHe(handle, 0, new int[0][]);
+    }
+
+    private boolean sendPreparedHe(int handle, int heVersion, int[][] blocks) {
+        try {
+            VibrationEffect prepared = RichTapVibrationEffect.createPreparedHe(handle,
+                    Process.myPid(), heVersion, blocks);
+            CombinedVibration combinedEffect = CombinedVibration.createParallel(prepared);
+            mVibratorManager.vibrate(Process.myUid(), mPackageName,
+                    combinedEffect, VIBRATE_REASON, null);
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.w(TAG, "for createPreparedHe, The system doesn't integrate richTap software");
+            return false;
+        }
+    }
+
+    /**
+     * 播放{@link #prepare}预加载的效果，参数同{@link #start(int, int, int, int)}
+     * @param handle 效果句柄
+     */
+    public void trigger(final int handle, final int loop, final int interval, final int amplitude, final int freq) {
+        if (Build.VERSION.SDK_INT < ANDROID_VERSIONCODE_O) {
+            Log.e(TAG, "The system is low than 26,does not support richTap!!");
+            return;
+        }
+        if (handle <= 0 || !checkParam(interval, amplitude, freq)) {
+            Log.e(TAG, "wrong trigger param");
+            return;
+        }
+        final int realLooper = getRealLooper(loop);
+        if (realLooper < 1) {
+            Log.e(TAG, "looper is not correct realLooper:"+realLooper);
+            return;
+        }
+        sealPendingParam();
+        mStarted = true;
+        final int generation = mGeneration.get();
+        mStartedGeneration = generation;
+        mExcutor.execute(new Runnable(){
+            @Override
+            public void run() {
+                sendTriggerHe(generation, handle, realLooper, interval, amplitude, freq);
+            }
+        });
+    }
+
+    /**
+     * Sends the trigger of a prepared effect for the play started at {@code generation}.
+     * @return the time the vibrate call returned in the {@link System#nanoTime} base, or -1 if
+     *         the play was stopped since or the call failed
+     */
+    private long sendTriggerHe(int generation, int handle, int loop, int interval, int amplitude, int freq) {
+        if (isPlayStopped(generation)) {
+            Log.d(TAG, "play stopped, drop trigger");
+            return -1;
+        }
+        try {
+            VibrationEffect trigger = RichTapVibrationEffect.createTriggerHe(handle,
+                    Process.myPid(), mSeq.getAndIncrement(), loop, interval,
+                    amplitude, freq);
+            CombinedVibration combinedEffect = CombinedVibration.createParallel(trigger);
+            mVibratorManager.vibrate(Process.myUid(), mPackageName,
+                    combinedEffect, VIBRATE_REASON, null);
+            long doneTime = System.nanoTime();
+            stopIfOvertaken(generation);
+            return doneTime;
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.w(TAG, "for createTriggerHe, The system doesn't integrate richTap software");
+            return -1;
+        }
+    }
+
+    /**
+     * 在指定时间开始播放效果，用于与音视频同步。效果立即在后台编译并预加载到系统振动服务，
+     * 到达指定时间时只发送很小的触发命令。其余参数同{@link #start(int, int, int, int)}。
+     * 等待期间不占用播放线程，其他播放器的调用照常执行。
+     * 实际开始时间与指定时间的偏差可通过{@link #getLastStartOffsetNanos()}获取。
+     * @param uptimeNanos 开始时间，与{@link System#nanoTime()}及AudioTimestamp#nanoTime同一时基；
+     *                    已过去的时间会立即播放
+     */
+    public void startAt(final long uptimeNanos, final int loop, final int interval, final int amplitude, final int freq) {
+        Log.d(TAG, "start at:" + uptimeNanos + " with loop:" + loop + " interval:" + interval
+                + " amplitude:" + amplitude + " freq:" + freq);
+        if (Build.VERSION.SDK_INT < ANDROID_VERSIONCODE_O) {
+            Log.e(TAG, "The system is low than 26,does not support richTap!!");
+            return;
+        }
+        if (mEffect == null || !checkParam(interval, amplitude, freq)) {
+            Log.e(TAG, "wrong start param");
+            return;
+        }
+        final int realLooper = getRealLooper(loop);
+        if (realLooper < 1) {
+            Log.e(TAG, "looper is not correct realLooper:"+realLooper);
+            return;
+        }
+        sealPendingParam();
+        mStarted = true;
+        final int generation = mGeneration.get();
+        mStartedGeneration = generation;
+        mExcutor.execute(new Runnable(){
+            @Override
+            public void run() {
+                int handle = prepareCompiled(mEffect.getCompiled());
+                if (handle < 0) {
+                    return;
+                }
+                scheduleTrigger(generation, handle, uptimeNanos, realLooper, interval, amplitude, freq);
+            }
+        });
+    }
+
+    private static synchronized Handler getTriggerHandler() {
+        if (sTriggerHandler == null) {
+            HandlerThread thread = new HandlerThread("HapticPlayerTrigger",
+                    Process.THREAD_PRIORITY_DISPLAY);
+            thread.start();
+            sTriggerHandler = new Handler(thread.getLooper());
+        }
+        return sTriggerHandler;
+    }
+
+    /**
+     * Sends the trigger of the prepared {@code handle} at {@code uptimeNanos}, less the learnt
+     * lead, then releases it. The wait is a delayed message on the trigger thread, which spins
+     * over the last {@link #START_SPIN_NANOS} for precision.
+     */
+    private void scheduleTrigger(final int generation, final int handle, final long uptimeNanos,
+            final int loop, final int interval, final int amplitude, final int freq) {
+        final long sendNanos = uptimeNanos - sTriggerLeadNanos;
+        long delayMs = (sendNanos - START_SPIN_NANOS - System.nanoTime()) / 1000000;
+        getTriggerHandler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!spinUntil(sendNanos, generation)) {
+                        Log.d(TAG, "play stopped before its start time");
+                        return;
+                    }
+                    long sendTime = System.nanoTime();
+                    long doneTime = sendTriggerHe(generation, handle, loop, interval, amplitude, freq);
+                    if (doneTime < 0) {
+                        return;
+                    }
+                    // the trigger is queued for the HAL when the vibrate call returns, learn how
+                    // early to send
+                    sTriggerLeadNanos += ((doneTime - sendTime) - sTriggerLeadNanos) / 4;
+                    mLastStartOffsetNanos = doneTime - uptimeNanos;
+                    Log.d(TAG, "scheduled start offset:" + mLastStartOffsetNanos / 1000 + "us lead:"
+                            + sTriggerLeadNanos / 1000 + "us");
+                } finally {
+                    release(handle);
+                }
+            }
+        }, Math.max(0, delayMs));
+    }
+
+    /**
+     * Spins until {@code deadlineNanos}.
+     * @return false if the play started at {@code generation} was stopped meanwhile
+     */
+    private boolean spinUntil(long deadlineNanos, int generation) {
+        while (System.nanoTime() < deadlineNanos) {
+            if (isPlayStopped(generation)) {
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        return !isPlayStopped(generation);
+    }
+
+    /**
+     * 获取最近一次{@link #startAt}实际开始时间与指定时间的偏差，单位ns，正数表示晚于指定时间。
+     * 开始时间取振动服务调用返回的时间，即触发命令已交给系统振动服务排队发往HAL的时间，
+     * 马达实际起振还要再晚系统振动服务调用HAL的排队与执行时间
+     */
+    public long getLastStartOffsetNanos() {
+        return mLastStartOffsetNanos;
+    }
+
     private boolean checkParam(int interval, int amplitude, int freq){
         if(interval < 0 && interval != -1){
             Log.e(TAG, "wrong interval param");
@@ -810,11 +961,30 @@ public class HapticPlayer {
         
         try {
             if(mStarted == true){
+                final ParamUpdate update;
+                synchronized (mParamLock) {
+                    if (mPendingParam != null) {
+                        // the worker has not picked up the previous update yet, newest value wins
+                        mPendingParam.merge(interval, amplitude, freq);
+                        return;
+                    }
+                    update = new ParamUpdate(interval, amplitude, freq);
+                    mPendingParam = update;
+                }
                 mExcutor.execute(new Runnable(){
                     @Override
                     public void run() {
+                        int updateInterval, updateAmplitude, updateFreq;
+                        synchronized (mParamLock) {
+                            if (mPendingParam == update) {
+                                mPendingParam = null;
+                            }
+                            updateInterval = update.mInterval;
+                            updateAmplitude = update.mAmplitude;
+                            updateFreq = update.mFreq;
+                        }
                         try {
-                            VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeParameter(interval, amplitude, freq);
+                            VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeParameter(updateInterval, updateAmplitude, updateFreq);
                             CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
                             mVibratorManager.vibrate(Process.myUid(), mPackageName,
                                         combinedEffect, VIBRATE_REASON, null);
@@ -833,7 +1003,66 @@ public class HapticPlayer {
             Log.w(TAG, "The system doesn't integrate richTap software");
         }
     }
-    
+
+    /**
+     * Closes the pending parameter update, so updates made after a start or stop are sent after
+     * it instead of being merged into an update queued before it.
+     */
+    private void sealPendingParam() {
+        synchronized (mParamLock) {
+            mPendingParam = null;
+        }
+    }
+
+    /**
+     * 获取被合并的参数更新次数：工作线程空闲前多次调用update*时，后续调用合并到待发送的更新中，不再单独发送
+     */
+    public long getMergedUpdateCount() {
+        synchronized (mParamLock) {
+            return mMergedUpdates;
+        }
+    }
+
+    /**
+     * 获取被丢弃的参数值个数：待发送更新中的某个参数在发送前被更新的值覆盖
+     */
+    public long getDroppedUpdateCount() {
+        synchronized (mParamLock) {
+            return mDroppedUpdates;
+        }
+    }
+
+    /** A parameter update waiting for the worker, -1 keeps the current value. */
+    private final class ParamUpdate {
+        int mInterval;
+        int mAmplitude;
+        int mFreq;
+
+        ParamUpdate(int interval, int amplitude, int freq) {
+            mInterval = interval;
+            mAmplitude = amplitude;
+            mFreq = freq;
+        }
+
+        // called with mParamLock held
+        void merge(int interval, int amplitude, int freq) {
+            mMergedUpdates++;
+            mInterval = mergeValue(mInterval, interval);
+            mAmplitude = mergeValue(mAmplitude, amplitude);
+            mFreq = mergeValue(mFreq, freq);
+        }
+
+        private int mergeValue(int pending, int update) {
+            if (update == -1) {
+                return pending;
+            }
+            if (pending != -1) {
+                mDroppedUpdates++;
+            }
+            return update;
+        }
+    }
+
     /**
      * 更新播放效果循环的时间间隔
      * @param interval 循环间隔，interval取值区间[0,1000]，单位ms
@@ -870,25 +1099,29 @@ public class HapticPlayer {
         applyPatternHeParam(interval, amplitude, freq);
     }
     
-    //必须实现，停止播放振动效果
+    /**
+     * 必须实现，停止播放振动效果。
+     * 立即取消本播放器尚未执行的start/update调用，正在发送的HE 2.0效果在当前wrapper之后中断，
+     * 并在调用线程上直接发送停止命令，不等待其他线程正在发送的wrapper：该wrapper的发送线程
+     * 在调用返回后发现已停止，会再发送一次停止命令。
+     */
     public void stop() {
         if (Build.VERSION.SDK_INT >= ANDROID_VERSIONCODE_O) {
             if(mStarted == true){
-                mExcutor.execute(new Runnable(){
-                    @Override
-                    public void run() {
-                        try {
-                            VibrationEffect createPatternHe = RichTapVibrationEffect.createPatternHeParameter(0, 0, 0);
-                            CombinedVibration combinedEffect = CombinedVibration.createParallel(createPatternHe);
-                            mVibratorManager.vibrate(Process.myUid(), mPackageName,
-                                        combinedEffect, VIBRATE_REASON, null);
-                            Log.d(TAG, "haptic play stop");
-                        }catch (Exception e){
-                            e.printStackTrace();
-                            Log.w(TAG, "for createPatternHe, The system doesn't integrate richTap software");
-                        }
-                    }
-                });
+                long stopStartTime = System.nanoTime();
+                int cancelled = mExcutor.cancelPending();
+                sealPendingParam();
+                // plays started before this point see a new generation and send nothing more
+                mGeneration.incrementAndGet();
+                sendStop();
+                mLastStopLatencyNanos = System.nanoTime() - stopStartTime;
+                finishCompletionsStopped();
+                long latencyMs = mLastStopLatencyNanos / 1000000;
+                if (latencyMs > STOP_LATENCY_WARN_MS) {
+                    Log.w(TAG, "haptic play stop took " + latencyMs + "ms, cancelled:" + cancelled);
+                } else {
+                    Log.d(TAG, "haptic play stop, latency:" + latencyMs + "ms cancelled:" + cancelled);
+                }
             }else{
                 Log.d(TAG, "haptic player has not started");
             }
@@ -899,143 +1132,25 @@ public class HapticPlayer {
 
     }
 
-    abstract class Event{
-        int mType;
-        int mLen;
-        int mVibId;
-        int mRelativeTime;
-        int mIntensity;
-        int mFreq;
-        int mDuration;
-
-        abstract int[] generateData();
-
-        @Override
-        public String toString() {
-            return "Event{" +
-                    "mType=" + mType +
-                    ", mVibId=" + mVibId +
-                    ", mRelativeTime=" + mRelativeTime +
-                    ", mIntensity=" + mIntensity +
-                    ", mFreq=" + mFreq +
-                    ", mDuration=" + mDuration +
-                    '}';
-        }
-    }
-
-    class TransientEvent extends Event{
-
-        TransientEvent(){
-            mLen = 7;
-        }
-        int[] generateData(){
-            int[] data = new int[mLen];
-            Arrays.fill(data,0);
-            data[0] = mType;
-            data[1] = mLen - 2;
-            data[2] = mVibId;
-
-            data[3] = mRelativeTime;
-            data[4] = mIntensity;
-            data[5] = mFreq;
-            data[6] = mDuration;
-            return data;
-        }
-    }
-
-    class Point{
-        int mTime;
-        int mIntensity;
-        int mFreq;
-    }
-    class ContinuousEvent extends Event{
-        int mPointNum;//max 16
-        Point[] mPoint;
-
-        ContinuousEvent(){
-        }
-        int[] generateData(){
-            int pointOffset = 8;
-            int[] data = new int[pointOffset + mPointNum*3];
-            Arrays.fill(data,0);
-
-            data[0] = mType;
-            data[1] = pointOffset + mPointNum*3 - 2;
-            data[2] = mVibId;
-
-            data[3] = mRelativeTime;
-            data[4] = mIntensity;
-            data[5] = mFreq;
-            data[6] = mDuration;
-            data[7] = mPointNum;
-
-            int offset = pointOffset;
-            for(int i = 0;i< mPointNum;i++){
-                data[offset] = mPoint[i].mTime;
-                offset += 1;
-
-                data[offset] = mPoint[i].mIntensity;
-                offset += 1;
-
-                data[offset] = mPoint[i].mFreq;
-                offset += 1;
-            }
-
-            return data;
+    /**
+     * Completes the pending {@link #startAsync} futures as stopped. The service reports a stopped
+     * pattern itself, this also covers plays it never received.
+     */
+    private void finishCompletionsStopped() {
+        PlayCompletion[] completions;
+        synchronized (mCompletions) {
+            completions = mCompletions.toArray(new PlayCompletion[0]);
         }
-        @Override
-        public String toString() {
-            return "Continuous{" +
-                    "mPointNum=" + mPointNum +
-                    ", mPoint=" + Arrays.toString(mPoint) +
-                    '}';
+        long now = SystemClock.elapsedRealtime();
+        for (PlayCompletion completion : completions) {
+            completion.finish(new PlayResult(0, /* stopped= */ true, now - completion.mStartTime));
         }
     }
 
-
-    class Pattern{
-        int mRelativeTime;
-        Event[] mEvent;
-
-        int getPatternEventLen(){
-            int len = 0;
-
-            for(Event event:mEvent){
-                if(event.mType == CONTINUOUS_EVENT){
-                    len += 8 + ((ContinuousEvent)event).mPointNum * 3;
-                }else if(event.mType == TRANSIENT_EVENT){
-                    len += 7;
-                }
-            }
-            return len;
-        }
-
-        int getPatternDataLen(){
-            int eventLen = getPatternEventLen();
-
-            return 3+eventLen;
-        }
-
-        int[] generateSerializationPatternData(int index){
-
-            int dataLen = getPatternDataLen();
-            int[] data = new int[dataLen];
-            Arrays.fill(data,0);
-
-            data[0] = index;
-            data[1] = mRelativeTime;
-            data[2] = mEvent.length;
-
-
-            int[] eventData = null;
-            int offset = 3;
-            for(Event event:mEvent){
-                eventData = event.generateData();
-                System.arraycopy(eventData,0,data,offset,eventData.length);
-                offset += eventData.length;
-            }
-
-            return data;
-        }
+    /**
+     * 获取最近一次stop()的耗时，从调用到停止命令发送完成，单位ns
+     */
+    public long getLastStopLatencyNanos() {
+        return mLastStopLatencyNanos;
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serial queue of one {@link HapticPlayer}, multiplexed with the queues of the other players of
+ * the process over a small shared pool.
+ *
+ * <p>Tasks of one queue run one at a time in submission order, tasks of different queues run in
+ * parallel. A queue has at most one pending slot in the pool and runs a single task per slot, so
+ * when the pool is busy a queue with a higher priority gets the next free thread even if a bulk
+ * queue has more work waiting.
+ *
+ * @hide
+ */
+final class HapticSerialExecutor implements Executor {
+    private static final String TAG = "HapticSerialExecutor";
+
+    /** At most this many tasks of all the queues run at once. */
+    static final int POOL_SIZE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sSlotSequence = new AtomicLong();
+    private static final ThreadPoolExecutor sPool = createPool();
+
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private volatile int mPriority;
+    // guarded by mTasks
+    private boolean mScheduled;
+
+    HapticSerialExecutor(int priority) {
+        mPriority = priority;
+    }
+
+    private static ThreadPoolExecutor createPool() {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "HapticPlayer-" + mCount.incrementAndGet());
+            }
+        };
+        // execute() only, the queue orders the raw Slot instances
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** Sets the priority used from the next scheduled task on. */
+    void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    int getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        synchronized (mTasks) {
+            mTasks.addLast(task);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        sPool.execute(new Slot());
+    }
+
+    /**
+     * Drops the tasks of this queue that have not started yet. A running task is not affected.
+     *
+     * @return the number of dropped tasks
+     */
+    int cancelPending() {
+        synchronized (mTasks) {
+            int count = mTasks.size();
+            mTasks.clear();
+            return count;
+        }
+    }
+
+    /** Runs the head task of the queue, then reschedules the queue if it still has work. */
+    private void runNext() {
+        Runnable task;
+        synchronized (mTasks) {
+            task = mTasks.pollFirst();
+        }
+        try {
+            if (task != null) {
+                task.run();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "haptic task failed", e);
+        } finally {
+            boolean more;
+            synchronized (mTasks) {
+                more = !mTasks.isEmpty();
+                mScheduled = more;
+            }
+            if (more) {
+                sPool.execute(new Slot());
+            }
+        }
+    }
+
+    private final class Slot implements Runnable, Comparable<Slot> {
+        private final int mSlotPriority = mPriority;
+        private final long mSequence = sSlotSequence.getAndIncrement();
+
+        @Override
+        public void run() {
+            runNext();
+        }
+
+        @Override
+        public int compareTo(Slot other) {
+            if (mSlotPriority != other.mSlotPriority) {
+                return mSlotPriority > other.mSlotPriority ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Arrays;
+
+/**
+ * Struct of arrays model of the patterns of an HE 2.0 file.
+ *
+ * <p>Every pattern, event and curve point is a row in flat primitive columns instead of an
+ * object, so a dense file with hundreds of patterns costs a handful of arrays. Pattern p owns
+ * events [{@code mPatternFirstEvent[p]}, {@code mPatternFirstEvent[p + 1]}) and event e owns the
+ * (time, intensity, freq) point triplets starting at {@code mEventPointOffset[e]} in
+ * {@code mPoints}. The columns grow while the file is parsed and are read only afterwards.
+ *
+ * @hide
+ */
+final class HeEventTable {
+    private static final int INITIAL_PATTERNS = 16;
+    private static final int INITIAL_EVENTS = 32;
+    private static final int INITIAL_POINTS = 64 * 3;
+
+    /** Length of a serialized pattern header: index, relativeTime, event count. */
+    static final int PATTERN_HEADER_LEN = 3;
+    /** Length of a serialized transient event. */
+    static final int TRANSIENT_EVENT_LEN = 7;
+    /** Length of a serialized continuous event without its points. */
+    static final int CONTINUOUS_EVENT_HEADER_LEN = 8;
+
+    private int mPatternCount;
+    private int[] mPatternRelativeTime = new int[INITIAL_PATTERNS];
+    // one extra slot so the end of the last pattern can be stored as the next first event
+    private int[] mPatternFirstEvent = new int[INITIAL_PATTERNS + 1];
+
+    private int mEventCount;
+    private int[] mEventType = new int[INITIAL_EVENTS];
+    private int[] mEventVibId = new int[INITIAL_EVENTS];
+    private int[] mEventRelativeTime = new int[INITIAL_EVENTS];
+    private int[] mEventIntensity = new int[INITIAL_EVENTS];
+    private int[] mEventFreq = new int[INITIAL_EVENTS];
+    private int[] mEventDuration = new int[INITIAL_EVENTS];
+    private int[] mEventPointOffset = new int[INITIAL_EVENTS];
+    private int[] mEventPointCount = new int[INITIAL_EVENTS];
+
+    private int mPointIntCount;
+    private int[] mPoints = new int[INITIAL_POINTS];
+
+    int getPatternCount() {
+        return mPatternCount;
+    }
+
+    int getEventCount() {
+        return mEventCount;
+    }
+
+    /** Opens a new pattern, the following {@link #addEvent} calls belong to it. */
+    int beginPattern() {
+        if (mPatternCount == mPatternRelativeTime.length) {
+            int size = mPatternCount * 2;
+            mPatternRelativeTime = Arrays.copyOf(mPatternRelativeTime, size);
+            mPatternFirstEvent = Arrays.copyOf(mPatternFirstEvent, size + 1);
+        }
+        int pattern = mPatternCount++;
+        mPatternRelativeTime[pattern] = 0;
+        mPatternFirstEvent[pattern] = mEventCount;
+        mPatternFirstEvent[pattern + 1] = mEventCount;
+        return pattern;
+    }
+
+    void setPatternRelativeTime(int pattern, int relativeTime) {
+        mPatternRelativeTime[pattern] = relativeTime;
+    }
+
+    int getPatternRelativeTime(int pattern) {
+        return mPatternRelativeTime[pattern];
+    }
+
+    int getPatternFirstEvent(int pattern) {
+        return mPatternFirstEvent[pattern];
+    }
+
+    int getPatternEventCount(int pattern) {
+        return mPatternFirstEvent[pattern + 1] - mPatternFirstEvent[pattern];
+    }
+
+    /**
+     * Appends an event to the last opened pattern, copying {@code pointCount} point triplets
+     * from {@code points}.
+     */
+    int addEvent(int type, int vibId, int relativeTime, int intensity, int freq, int duration,
+            int[] points, int pointCount) {
+        if (mEventCount == mEventType.length) {
+            int size = mEventCount * 2;
+            mEventType = Arrays.copyOf(mEventType, size);
+            mEventVibId = Arrays.copyOf(mEventVibId, size);
+            mEventRelativeTime = Arrays.copyOf(mEventRelativeTime, size);
+            mEventIntensity = Arrays.copyOf(mEventIntensity, size);
+            mEventFreq = Arrays.copyOf(mEventFreq, size);
+            mEventDuration = Arrays.copyOf(mEventDuration, size);
+            mEventPointOffset = Arrays.copyOf(mEventPointOffset, size);
+            mEventPointCount = Arrays.copyOf(mEventPointCount, size);
+        }
+        int pointInts = pointCount * 3;
+        if (mPointIntCount + pointInts > mPoints.length) {
+            mPoints = Arrays.copyOf(mPoints, Math.max(mPoints.length * 2, mPointIntCount + pointInts));
+        }
+        int event = mEventCount++;
+        mEventType[event] = type;
+        mEventVibId[event] = vibId;
+        mEventRelativeTime[event] = relativeTime;
+        mEventIntensity[event] = intensity;
+        mEventFreq[event] = freq;
+        mEventDuration[event] = duration;
+        mEventPointOffset[event] = mPointIntCount;
+        mEventPointCount[event] = pointCount;
+        System.arraycopy(points, 0, mPoints, mPointIntCount, pointInts);
+        mPointIntCount += pointInts;
+        mPatternFirstEvent[mPatternCount] = mEventCount;
+        return event;
+    }
+
+    int getEventType(int event) {
+        return mEventType[event];
+    }
+
+    int getEventRelativeTime(int event) {
+        return mEventRelativeTime[event];
+    }
+
+    int getEventDuration(int event) {
+        return mEventDuration[event];
+    }
+
+    /** Returns the int count of event {@code event} once serialized. */
+    int getEventDataLen(int event) {
+        if (mEventType[event] == HapticPlayer.CONTINUOUS_EVENT) {
+            return CONTINUOUS_EVENT_HEADER_LEN + mEventPointCount[event] * 3;
+        }
+        return TRANSIENT_EVENT_LEN;
+    }
+
+    /** Returns the int count of pattern {@code pattern} and its events once serialized. */
+    int getPatternDataLen(int pattern) {
+        int len = PATTERN_HEADER_LEN;
+        for (int e = mPatternFirstEvent[pattern], end = mPatternFirstEvent[pattern + 1];
+                e < end; e++) {
+            len += getEventDataLen(e);
+        }
+        return len;
+    }
+
+    /**
+     * Writes pattern {@code pattern} and its events into {@code data} at {@code offset}, as
+     * pattern {@code index} of the HE 2.0 wrapper.
+     *
+     * @return the offset right after the pattern
+     */
+    int writePattern(int[] data, int offset, int pattern, int index) {
+        int first = mPatternFirstEvent[pattern];
+        int end = mPatternFirstEvent[pattern + 1];
+        data[offset] = index;
+        data[offset + 1] = mPatternRelativeTime[pattern];
+        data[offset + 2] = end - first;
+        offset += PATTERN_HEADER_LEN;
+        for (int e = first; e < end; e++) {
+            offset = writeEvent(data, offset, e);
+        }
+        return offset;
+    }
+
+    private int writeEvent(int[] data, int offset, int event) {
+        int len = getEventDataLen(event);
+        data[offset] = mEventType[event];
+        data[offset + 1] = len - 2;
+        data[offset + 2] = mEventVibId[event];
+        data[offset + 3] = mEventRelativeTime[event];
+        data[offset + 4] = mEventIntensity[event];
+        data[offset + 5] = mEventFreq[event];
+        data[offset + 6] = mEventDuration[event];
+        if (mEventType[event] != HapticPlayer.CONTINUOUS_EVENT) {
+            return offset + TRANSIENT_EVENT_LEN;
+        }
+        int pointCount = mEventPointCount[event];
+        data[offset + 7] = pointCount;
+        System.arraycopy(mPoints, mEventPointOffset[event], data,
+                offset + CONTINUOUS_EVENT_HEADER_LEN, pointCount * 3);
+        return offset + len;
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Single pass, pull based parser for HE files.
+ *
+ * <p>The file is read token by token with {@link JsonReader}, so no intermediate JSON tree is
+ * built. The HE version, the compliance checks and the HE int layout are all produced while
+ * walking the tokens once. Keys may come in any order: the layout is chosen from the
+ * {@code Pattern} (HE 1.0) or {@code PatternList} (HE 2.0) key and checked against
+ * {@code Metadata.Version} once the root object is closed.
+ *
+ * @hide
+ */
+final class HeParser {
+    private static final String TAG = "HeParser";
+    private static final boolean DEBUG = false;
+
+    /** First int of the HE 1.0 data sent to the HAL: HE 1.0 which support 16 curve points. */
+    static final int HE_1_0_DATA_TYPE = 0x3;
+
+    private static final int MAX_RELATIVE_TIME = HapticPlayer.MAX_PATERN_LAST_TIME;
+    private static final int MAX_EVENT_DURATION = HapticPlayer.MAX_PATERN_EVENT_LAST_TIME;
+    private static final int MAX_INTENSITY = HapticPlayer.MAX_INTENSITY;
+    private static final int MAX_FREQ = HapticPlayer.MAX_FREQ;
+    private static final int MIN_POINT_FREQ = -HapticPlayer.MAX_FREQ;
+    private static final int MAX_EVENT_COUNT = HapticPlayer.MAX_EVENT_COUNT;
+    private static final int MAX_POINT_COUNT = HapticPlayer.MAX_POINT_COUNT;
+    /** Duration accounted to a transient event when computing the total duration, in ms. */
+    private static final int TRANSIENT_DURATION = 80;
+
+    /** Parsed form of an HE file. */
+    static final class Result {
+        /** Value of {@code Metadata.Version}. */
+        int mHeVersion;
+        /** HE 1.0 only: data ready for the HAL, including the leading {@link #HE_1_0_DATA_TYPE}. */
+        int[] mHe1Data;
+        /** HE 2.0 only: validated patterns in file order. */
+        HeEventTable mPatterns;
+        /** End time of the last event, in ms. */
+        int mTotalDuration;
+    }
+
+    /** Version and pattern count of an HE file, see {@link #scan}. */
+    static final class Header {
+        int mHeVersion;
+        /** Number of entries of the HE 2.0 PatternList, 0 for HE 1.0. */
+        int mPatternCount;
+    }
+
+    /** Notified of every HE 2.0 pattern as soon as it is closed and validated. */
+    interface PatternListener {
+        /**
+         * @param patterns the patterns parsed so far, read only
+         * @param pattern index of the pattern that was just closed
+         * @return false to abort the parse
+         */
+        boolean onPattern(HeEventTable patterns, int pattern);
+    }
+
+    private final PatternListener mListener;
+
+    /** Cross event state for the compliance checks, reset for every file. */
+    private int mRelativeTimeLast;
+    private int mDurationLast;
+    private int mTotalDuration;
+
+    /** Values of the Parameters object of the event being parsed. */
+    private int mIntensity;
+    private int mFrequency;
+    private int mPointCount;
+    /** Curve points of the event being parsed, as (time, intensity * 100, freq) triplets. */
+    private int[] mPoints = new int[MAX_POINT_COUNT * 3];
+
+    private HeParser(@Nullable PatternListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Parses and validates the given HE string.
+     *
+     * @return the parsed file, or null if it is malformed or isn't compliance
+     */
+    @Nullable
+    static Result parse(@Nullable String patternString) {
+        return parse(patternString, null);
+    }
+
+    /**
+     * Parses and validates the given HE string, handing every HE 2.0 pattern to
+     * {@code listener} as soon as it is validated, before the rest of the file is read.
+     *
+     * @return the parsed file, or null if it is malformed, isn't compliance or was aborted
+     */
+    @Nullable
+    static Result parse(@Nullable String patternString, @Nullable PatternListener listener) {
+        if (patternString == null) {
+            return null;
+        }
+        try {
+            return new HeParser(listener).parseRoot(
+                    new JsonReader(new StringReader(patternString)));
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "parse he failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads only the version and the number of HE 2.0 patterns, skipping over everything else
+     * without validating nor decoding it. Much cheaper than {@link #parse}, it lets HE 2.0
+     * wrappers, whose header carries the total pattern count, be sent while parsing.
+     *
+     * @return the header, or null if the string is not a well formed HE file
+     */
+    @Nullable
+    static Header scan(@Nullable String patternString) {
+        if (patternString == null) {
+            return null;
+        }
+        Header header = new Header();
+        header.mHeVersion = -1;
+        try {
+            JsonReader reader = new JsonReader(new StringReader(patternString));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (HapticPlayer.HE_META_DATA_KEY.equals(name)) {
+                    header.mHeVersion = new HeParser(null).parseMetadata(reader);
+                } else if (HapticPlayer.PATTERN_KEY_PATTERN_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                        header.mPatternCount++;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return header;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "scan he failed", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private Result parseRoot(JsonReader reader) throws IOException {
+        Result result = new Result();
+        int heVersion = -1;
+        boolean hasPattern = false;
+        boolean hasPatternList = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (HapticPlayer.HE_META_DATA_KEY.equals(name)) {
+                heVersion = parseMetadata(reader);
+            } else if (HapticPlayer.PATTERN_KEY_PATTERN.equals(name)) {
+                if (!parseHe_1_0(reader, result)) {
+                    return null;
+                }
+                hasPattern = true;
+            } else if (HapticPlayer.PATTERN_KEY_PATTERN_LIST.equals(name)) {
+                if (!parseHe_2_0(reader, result)) {
+                    return null;
+                }
+                hasPatternList = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if ((heVersion == 1 && !hasPattern) || (heVersion == 2 && !hasPatternList)) {
+            Log.e(TAG, "he version:" + heVersion + " does not match pattern data");
+            return null;
+        }
+        result.mHeVersion = heVersion;
+        return result;
+    }
+
+    private int parseMetadata(JsonReader reader) throws IOException {
+        int version = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (HapticPlayer.HE_VERSION_KEY.equals(reader.nextName())) {
+                version = nextInt(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return version;
+    }
+
+    private boolean parseHe_1_0(JsonReader reader, Result result) throws IOException {
+        int[] data = new int[1 + MAX_EVENT_COUNT * HapticPlayer.HE_VALUE_LENGTH];
+        data[0] = HE_1_0_DATA_TYPE;
+        int eventCount = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (eventCount >= MAX_EVENT_COUNT) {
+                reader.skipValue();
+                continue;
+            }
+            int base = 1 + eventCount * HapticPlayer.HE_VALUE_LENGTH;
+            boolean hasEvent = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (HapticPlayer.EVENT_KEY_EVENT.equals(reader.nextName())) {
+                    if (!parseEventHe_1_0(reader, eventCount, data, base)) {
+                        return false;
+                    }
+                    hasEvent = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!hasEvent) {
+                Log.e(TAG, "pattern:" + eventCount + " has no event");
+                return false;
+            }
+            eventCount++;
+        }
+        reader.endArray();
+
+        if (eventCount == 0) {
+            Log.e(TAG, "he file has no event");
+            return false;
+        }
+        int lastType = data[1 + (eventCount - 1) * HapticPlayer.HE_VALUE_LENGTH
+                + HapticPlayer.HE_TYPE];
+        if (HapticPlayer.CONTINUOUS_EVENT == lastType) {
+            result.mTotalDuration = mRelativeTimeLast + mDurationLast;
+        } else {
+            result.mTotalDuration = mRelativeTimeLast + TRANSIENT_DURATION;
+        }
+        result.mHe1Data = Arrays.copyOf(data, 1 + eventCount * HapticPlayer.HE_VALUE_LENGTH);
+        if (DEBUG) {
+            Log.d(TAG, "he 1.0 events:" + eventCount + " totalDuration:" + result.mTotalDuration);
+        }
+        return true;
+    }
+
+    /**
+     * Writes one HE 1.0 event into {@code data} at {@code base}. The event is validated once its
+     * object is closed, since keys like Duration may come after the Curve they constrain.
+     */
+    private boolean parseEventHe_1_0(JsonReader reader, int ind, int[] data, int base)
+            throws IOException {
+        int type = 0;
+        int relativeTime = ind * HapticPlayer.HE_DEFAULT_RELATIVE_TIME;
+        int duration = HapticPlayer.HE_DEFAULT_DURATION;
+        boolean hasParameters = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (HapticPlayer.EVENT_KEY_HE_TYPE.equals(name)) {
+                type = nextType(reader);
+            } else if (HapticPlayer.EVENT_KEY_RELATIVE_TIME.equals(name)) {
+                relativeTime = nextInt(reader);
+            } else if (HapticPlayer.EVENT_KEY_DURATION.equals(name)) {
+                duration = nextInt(reader);
+            } else if (HapticPlayer.EVENT_KEY_HE_PARAMETERS.equals(name)) {
+                parseParameters(reader, MAX_POINT_COUNT);
+                hasParameters = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (type == 0) {
+            Log.e(TAG, "haven't get type value");
+            return false;
+        }
+        if (!isInTheInterval(relativeTime, 0, MAX_RELATIVE_TIME)) {
+            Log.e(TAG, "relativeTime must between 0 and 50000");
+            return false;
+        }
+        if (!hasParameters) {
+            Log.e(TAG, "event:" + ind + " don't have parameters");
+            return false;
+        }
+        if (!isInTheInterval(mIntensity, 0, MAX_INTENSITY)
+                || !isInTheInterval(mFrequency, 0, MAX_FREQ)) {
+            Log.e(TAG, "intensity or frequency must between 0 and 100");
+            return false;
+        }
+        data[base + HapticPlayer.HE_TYPE] = type;
+        data[base + HapticPlayer.HE_RELATIVE_TIME] = relativeTime;
+        data[base + HapticPlayer.HE_INTENSITY] = mIntensity;
+        data[base + HapticPlayer.HE_FREQUENCY] = mFrequency;
+        mRelativeTimeLast = relativeTime;
+
+        if (HapticPlayer.CONTINUOUS_EVENT == type) {
+            if (!isInTheInterval(duration, 0, MAX_EVENT_DURATION)) {
+                Log.e(TAG, "duration must be less than 5000");
+                return false;
+            }
+            if (mPointCount < 0) {
+                Log.e(TAG, "continuous event:" + ind + " don't have curve");
+                return false;
+            }
+            int pointCount = mPointCount;
+            for (int i = 0; i < pointCount; i++) {
+                int pointTime = mPoints[i * 3];
+                int pointIntensity = mPoints[i * 3 + 1];
+                int pointFrequency = mPoints[i * 3 + 2];
+                if (0 == i && (pointTime != 0 || pointIntensity != 0
+                        || !isInTheInterval(pointFrequency, MIN_POINT_FREQ, MAX_FREQ))) {
+                    Log.e(TAG, "first point's time,  intensity must be 0, frequency must between -100 and 100");
+                    return false;
+                } else if (0 < i && i < pointCount - 1
+                        && (!isInTheInterval(pointTime, 0, MAX_EVENT_DURATION)
+                        || !isInTheInterval(pointIntensity, 0, MAX_INTENSITY)
+                        || !isInTheInterval(pointFrequency, MIN_POINT_FREQ, MAX_FREQ))) {
+                    // intensity value has multi 100, so interval is 0~100
+                    Log.e(TAG, "point's time must be less than 5000, intensity must between 0~1, frequency must between -100 and 100");
+                    return false;
+                } else if (pointCount - 1 == i && (pointTime != duration || pointIntensity != 0
+                        || !isInTheInterval(pointFrequency, MIN_POINT_FREQ, MAX_FREQ))) {
+                    Log.e(TAG, "last point's time must equal with duration, and intensity must be 0, frequency must between -100 and 100");
+                    return false;
+                }
+            }
+            mDurationLast = duration;
+            data[base + HapticPlayer.HE_DURATION] = duration;
+            data[base + HapticPlayer.HE_VIB_INDEX] = 0;
+            data[base + HapticPlayer.HE_POINT_COUNT] = pointCount;
+            System.arraycopy(mPoints, 0, data, base + HapticPlayer.HE_CURVE_POINT_0_TIME,
+                    pointCount * 3);
+        }
+        return true;
+    }
+
+    private boolean parseHe_2_0(JsonReader reader, Result result) throws IOException {
+        HeEventTable table = new HeEventTable();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (!parsePatternHe_2_0(reader, table)) {
+                return false;
+            }
+        }
+        reader.endArray();
+
+        result.mPatterns = table;
+        result.mTotalDuration = mTotalDuration;
+        if (DEBUG) {
+            Log.d(TAG, "he 2.0 patterns:" + table.getPatternCount()
+                    + " events:" + table.getEventCount());
+        }
+        return true;
+    }
+
+    private boolean parsePatternHe_2_0(JsonReader reader, HeEventTable table)
+            throws IOException {
+        // the previous pattern must be over before this one starts
+        int prevPatternEndTime = mRelativeTimeLast + mDurationLast;
+        int ind = table.beginPattern();
+        int patternRelativeTime = 0;
+        boolean hasAbsTime = false;
+        boolean hasEvents = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (HapticPlayer.PATTERN_KEY_PATTERN_ABS_TIME.equals(name)) {
+                patternRelativeTime = nextInt(reader);
+                hasAbsTime = true;
+            } else if (HapticPlayer.PATTERN_KEY_PATTERN.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (!parseEventHolderHe_2_0(reader, ind, table)) {
+                        return false;
+                    }
+                }
+                reader.endArray();
+                hasEvents = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasAbsTime || !hasEvents) {
+            Log.e(TAG, "pattern:" + ind + " miss " + (hasAbsTime
+                    ? HapticPlayer.PATTERN_KEY_PATTERN : HapticPlayer.PATTERN_KEY_PATTERN_ABS_TIME));
+            return false;
+        }
+        if (ind > 0 && patternRelativeTime < prevPatternEndTime) {
+            Log.e(TAG, "Bad pattern relative time in int:" + ind);
+            return false;
+        }
+        table.setPatternRelativeTime(ind, patternRelativeTime);
+        int first = table.getPatternFirstEvent(ind);
+        for (int e = first, end = first + table.getPatternEventCount(ind); e < end; e++) {
+            int eventEnd = table.getEventRelativeTime(e)
+                    + (HapticPlayer.CONTINUOUS_EVENT == table.getEventType(e)
+                    ? table.getEventDuration(e) : TRANSIENT_DURATION);
+            mTotalDuration = Math.max(mTotalDuration, patternRelativeTime + eventEnd);
+        }
+        if (mListener != null && !mListener.onPattern(table, ind)) {
+            Log.d(TAG, "parse aborted at pattern:" + ind);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean parseEventHolderHe_2_0(JsonReader reader, int ind, HeEventTable table)
+            throws IOException {
+        boolean hasEvent = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (HapticPlayer.EVENT_KEY_EVENT.equals(reader.nextName())) {
+                if (hasEvent || !parseEventHe_2_0(reader, ind, table)) {
+                    return false;
+                }
+                hasEvent = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!hasEvent) {
+            Log.e(TAG, "pattern:" + ind + " has empty event");
+            return false;
+        }
+        return true;
+    }
+
+    /** Validates one HE 2.0 event and appends it to the current pattern of {@code table}. */
+    private boolean parseEventHe_2_0(JsonReader reader, int ind, HeEventTable table)
+            throws IOException {
+        int type = 0;
+        int vibId = -1;
+        int relativeTime = -1;
+        int duration = -1;
+        boolean hasParameters = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (HapticPlayer.EVENT_KEY_HE_TYPE.equals(name)) {
+                type = nextType(reader);
+            } else if (HapticPlayer.PATTERN_KEY_EVENT_VIB_ID.equals(name)) {
+                vibId = nextInt(reader);
+            } else if (HapticPlayer.EVENT_KEY_RELATIVE_TIME.equals(name)) {
+                relativeTime = nextInt(reader);
+            } else if (HapticPlayer.EVENT_KEY_DURATION.equals(name)) {
+                duration = nextInt(reader);
+            } else if (HapticPlayer.EVENT_KEY_HE_PARAMETERS.equals(name)) {
+                parseParameters(reader, Integer.MAX_VALUE);
+                hasParameters = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (type == 0) {
+            Log.e(TAG, "haven't get type value");
+            return false;
+        }
+        if (vibId < 0) {
+            Log.e(TAG, "event:" + ind + " don't have index parameters,BAD he!");
+            return false;
+        }
+        if (relativeTime < 0) {
+            Log.e(TAG, "event:" + ind + " don't have relativeTime parameters,BAD he!");
+            return false;
+        }
+        int eventIndex = table.getPatternEventCount(ind);
+        if (eventIndex > 0 && relativeTime
+                < table.getEventRelativeTime(table.getEventCount() - 1)) {
+            Log.e(TAG, "pattern ind:" + ind + " event:" + eventIndex + " relative time is not right!");
+            return false;
+        }
+        if (!isInTheInterval(relativeTime, 0, MAX_RELATIVE_TIME)) {
+            Log.e(TAG, "relativeTime must between 0 and 50000");
+            return false;
+        }
+        if (!hasParameters || !isInTheInterval(mIntensity, 0, MAX_INTENSITY)
+                || !isInTheInterval(mFrequency, 0, MAX_FREQ)) {
+            Log.e(TAG, "intensity or frequency must between 0 and 100");
+            return false;
+        }
+        mRelativeTimeLast = relativeTime;
+
+        int pointCount = 0;
+        if (HapticPlayer.CONTINUOUS_EVENT == type) {
+            if (duration < 0) {
+                Log.e(TAG, "event:" + ind + " don't have duration parameters");
+                return false;
+            }
+            if (!isInTheInterval(duration, 0, MAX_EVENT_DURATION)) {
+                Log.e(TAG, "duration must be less than 5000");
+                return false;
+            }
+            pointCount = mPointCount;
+            if (pointCount <= 0) {
+                Log.d(TAG, "continuous event has nothing in point");
+                return false;
+            }
+            int prevPointTime = -1;
+            for (int i = 0; i < pointCount; i++) {
+                int pointTime = mPoints[i * 3];
+                if (i == 0 && pointTime != 0) {
+                    Log.d(TAG, "time of first point is not 0,bad he!");
+                    return false;
+                }
+                if (i > 0 && pointTime < prevPointTime) {
+                    Log.d(TAG, "point times did not arrange in order,bad he!");
+                    return false;
+                }
+                prevPointTime = pointTime;
+            }
+            if (prevPointTime != duration) {
+                Log.e(TAG, "event:" + ind + " point last time do not match duration parameter");
+                return false;
+            }
+            mDurationLast = duration;
+        } else {
+            duration = 0;
+        }
+        table.addEvent(type, (byte) vibId, relativeTime, mIntensity, mFrequency, duration,
+                mPoints, pointCount);
+        return true;
+    }
+
+    /**
+     * Reads a Parameters object into {@link #mIntensity}, {@link #mFrequency} and the first
+     * {@code maxPoints} curve points into {@link #mPoints}. {@link #mPointCount} is left at -1
+     * if there is no Curve.
+     */
+    private void parseParameters(JsonReader reader, int maxPoints) throws IOException {
+        mIntensity = -1;
+        mFrequency = -1;
+        mPointCount = -1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (HapticPlayer.EVENT_KEY_HE_INTENSITY.equals(name)) {
+                mIntensity = nextInt(reader);
+            } else if (HapticPlayer.EVENT_KEY_HE_FREQUENCY.equals(name)) {
+                mFrequency = nextInt(reader);
+            } else if (HapticPlayer.EVENT_KEY_HE_CURVE.equals(name)) {
+                int pointCount = 0;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (pointCount >= maxPoints) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    if ((pointCount + 1) * 3 > mPoints.length) {
+                        // HE 2.0 does not cap the curve
+                        mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+                    }
+                    parsePoint(reader, mPoints, pointCount * 3);
+                    pointCount++;
+                }
+                reader.endArray();
+                mPointCount = pointCount;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void parsePoint(JsonReader reader, int[] points, int offset) throws IOException {
+        boolean hasTime = false;
+        boolean hasIntensity = false;
+        boolean hasFreq = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (HapticPlayer.EVENT_KEY_HE_CURVE_POINT_TIME.equals(name)) {
+                points[offset] = nextInt(reader);
+                hasTime = true;
+            } else if (HapticPlayer.EVENT_KEY_HE_INTENSITY.equals(name)) {
+                points[offset + 1] = (int) (reader.nextDouble() * 100);// * 100 ,方便传递数据
+                hasIntensity = true;
+            } else if (HapticPlayer.EVENT_KEY_HE_FREQUENCY.equals(name)) {
+                points[offset + 2] = nextInt(reader);
+                hasFreq = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (!hasTime || !hasIntensity || !hasFreq) {
+            throw new IllegalStateException("curve point is missing time, intensity or frequency");
+        }
+    }
+
+    private static int nextType(JsonReader reader) throws IOException {
+        String name = reader.nextString();
+        if (HapticPlayer.EVENT_TYPE_HE_CONTINUOUS_NAME.equals(name)) {
+            return HapticPlayer.CONTINUOUS_EVENT;
+        } else if (HapticPlayer.EVENT_TYPE_HE_TRANSIENT_NAME.equals(name)) {
+            return HapticPlayer.TRANSIENT_EVENT;
+        }
+        return 0;
+    }
+
+    /** Reads a number the way org.json getInt() does: numeric strings and doubles are accepted. */
+    private static int nextInt(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NUMBER || reader.peek() == JsonToken.STRING) {
+            return (int) reader.nextDouble();
+        }
+        throw new IllegalStateException("expected a number but was " + reader.peek());
+    }
+
+    private static boolean isInTheInterval(int data, int a, int b) {
+        return data >= a && data <= b;
+    }
+}
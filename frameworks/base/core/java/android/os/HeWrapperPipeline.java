@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses an HE 2.0 string and sends its wrappers at the same time.
+ *
+ * <p>The calling thread parses the file and serializes a wrapper as soon as the next pattern
+ * would overflow the wrapper budget, handing it through a small bounded queue
+ * to a sender thread which makes the blocking vibrate binder calls in order. The first wrapper
+ * is thus in flight while the following patterns are still being parsed, and a slow binder call
+ * throttles the parser instead of piling up wrappers.
+ *
+ * <p>All the wrappers of one play carry the same pid/seq, so the service still sees them as one
+ * sender. The wrappers are kept without pid/seq and become the {@link CompiledHe} of the effect
+ * once the whole file parsed fine, later plays then go through the compiled path.
+ *
+ * @hide
+ */
+final class HeWrapperPipeline implements HeParser.PatternListener {
+    private static final String TAG = "HeWrapperPipeline";
+
+    /** Wrappers parsed ahead of the one being sent. */
+    private static final int QUEUE_CAPACITY = 2;
+    /** Marks the end of the wrappers of one play. */
+    private static final int[] END = new int[0];
+    /** How often a parser blocked on a full queue checks that its sender is still running. */
+    private static final long OFFER_POLL_MS = 100;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // one sender per play; plays run on the HapticSerialExecutor pool and run() waits for its
+    // sender, so there are never more senders than pool threads and none waits for a thread
+    private static final ThreadPoolExecutor sSender = createSender();
+
+    private final HapticPlayer mPlayer;
+    private final int mGeneration;
+    private final int mHeVersion;
+    private final int mTotalPattern;
+    private final int mPid;
+    private final int mSeq;
+    private final int mLoop;
+    private final int mInterval;
+    private final int mAmplitude;
+    private final int mFreq;
+    private final HapticPlayer.PlayCompletion mCompletion;
+    private final long[] mTimestamps;
+    // the wrapper holding the first pattern, the one carrying mTimestamps
+    private volatile int[] mFirstWrapper;
+    // the wrapper holding the last pattern, the one carrying mCompletion
+    private volatile int[] mLastWrapper;
+
+    private final BlockingQueue<int[]> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ArrayList<int[]> mWrappers = new ArrayList<>();
+    private final int mBudget = HapticPlayer.getWrapperBudgetHe_2_0();
+    private int mWrapperStart;
+    private int mWrapperLen = HapticPlayer.HE2_0_WRAPPER_HEADER_LEN;
+    private Future<?> mSender;
+
+    private HeWrapperPipeline(HapticPlayer player, HeParser.Header header, int generation,
+            int pid, int seq, int loop, int interval, int amplitude, int freq,
+            HapticPlayer.PlayCompletion completion, long[] timestamps) {
+        mPlayer = player;
+        mCompletion = completion;
+        mTimestamps = timestamps;
+        mGeneration = generation;
+        mHeVersion = header.mHeVersion;
+        mTotalPattern = header.mPatternCount;
+        mPid = pid;
+        mSeq = seq;
+        mLoop = loop;
+        mInterval = interval;
+        mAmplitude = amplitude;
+        mFreq = freq;
+    }
+
+    /**
+     * Plays the HE 2.0 string {@code patternString} whose header was read by
+     * {@link HeParser#scan}, sending every wrapper as soon as it is parsed. Returns once the last
+     * wrapper was sent, or as soon as the play is stopped.
+     *
+     * @return the compiled effect, or null if the file isn't compliance or the play was stopped;
+     *         in that case the wrappers before that point were already sent
+     */
+    @Nullable
+    static CompiledHe play(@NonNull HapticPlayer player, @NonNull String patternString,
+            @NonNull HeParser.Header header, int generation, int pid, int seq, int loop,
+            int interval, int amplitude, int freq,
+            @Nullable HapticPlayer.PlayCompletion completion, @Nullable long[] timestamps) {
+        HeWrapperPipeline pipeline = new HeWrapperPipeline(player, header, generation, pid, seq,
+                loop, interval, amplitude, freq, completion, timestamps);
+        return pipeline.run(patternString);
+    }
+
+    private static ThreadPoolExecutor createSender() {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "HapticPlayerSender-" + mCount.incrementAndGet());
+            }
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(HapticSerialExecutor.POOL_SIZE,
+                HapticSerialExecutor.POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @Nullable
+    private CompiledHe run(String patternString) {
+        Future<?> sender = sSender.submit(this::drain);
+        mSender = sender;
+        HeParser.Result he = null;
+        try {
+            he = HeParser.parse(patternString, this);
+        } finally {
+            if (!offer(END)) {
+                sender.cancel(true);
+            }
+            try {
+                sender.get();
+            } catch (ExecutionException | CancellationException e) {
+                Log.e(TAG, "send he wrapper failed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (he == null || he.mPatterns == null
+                || he.mPatterns.getPatternCount() != mTotalPattern) {
+            Log.e(TAG, "he stopped after " + mWrappers.size() + " wrappers");
+            return null;
+        }
+        Log.d(TAG, "pipelined he patterns:" + mTotalPattern + " sent in transactions:"
+                + mWrappers.size());
+        return CompiledHe.fromWrappers(mHeVersion, mWrappers.toArray(new int[0][]),
+                mTotalPattern, he.mTotalDuration, patternString);
+    }
+
+    @Override
+    public boolean onPattern(HeEventTable patterns, int pattern) {
+        if (mPlayer.isPlayStopped(mGeneration)) {
+            return false;
+        }
+        int end = pattern + 1;
+        if (end > mTotalPattern) {
+            Log.e(TAG, "more patterns than scanned:" + mTotalPattern);
+            return false;
+        }
+        // same packing as CompiledHe.compile, one pattern late since the next one is unknown
+        int patternLen = patterns.getPatternDataLen(pattern);
+        if (!HapticPlayer.fitsInWrapperHe_2_0(mWrapperLen, pattern - mWrapperStart, patternLen,
+                mBudget)) {
+            if (!flush(patterns, pattern)) {
+                return false;
+            }
+        }
+        mWrapperLen += patternLen;
+        return end < mTotalPattern || flush(patterns, end);
+    }
+
+    /** Closes the wrapper holding patterns [mWrapperStart, end) and hands it to the sender. */
+    private boolean flush(HeEventTable patterns, int end) {
+        int[] wrapper = HapticPlayer.generateSerializationDataHe_2_0(HapticPlayer.FORMAT_VERSION,
+                mHeVersion, mTotalPattern, /* pid= */ 0, /* seq= */ 0, mWrapperStart, patterns,
+                mWrapperStart, end);
+        mWrappers.add(wrapper);
+        mWrapperStart = end;
+        mWrapperLen = HapticPlayer.HE2_0_WRAPPER_HEADER_LEN;
+
+        int[] data = wrapper.clone();
+        data[CompiledHe.WRAPPER_PID_INDEX] = mPid;
+        data[CompiledHe.WRAPPER_SEQ_INDEX] = mSeq;
+        if (mWrappers.size() == 1) {
+            // the compile stage of a pipelined play ends with its first wrapper
+            if (mTimestamps != null) {
+                mTimestamps[RichTapVibrationEffect.TS_COMPILED] = System.nanoTime();
+            }
+            mFirstWrapper = data;
+        }
+        if (end == mTotalPattern) {
+            mLastWrapper = data;
+        }
+        return offer(data);
+    }
+
+    /**
+     * Hands {@code data} to the sender, waiting while the queue is full.
+     * @return false if the sender is gone, it would never take it then
+     */
+    private boolean offer(int[] data) {
+        try {
+            while (!mQueue.offer(data, OFFER_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (mSender.isDone()) {
+                    Log.e(TAG, "he sender is gone, drop the remaining wrappers");
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void drain() {
+        try {
+            // once stopped keep draining, so the parser never blocks on a full queue
+            for (int[] data = mQueue.take(); data != END; data = mQueue.take()) {
+                mPlayer.sendPatternWrapper(mGeneration, mLoop, mInterval, mAmplitude, mFreq, data,
+                        data == mLastWrapper ? mCompletion : null,
+                        data == mFirstWrapper ? mTimestamps : null);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "he sender interrupted");
+        }
+    }
+}
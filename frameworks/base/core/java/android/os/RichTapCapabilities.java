@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * What the RichTap software of this device supports: client code, version and HE versions.
+ *
+ * <p>Resolved once per process from {@link RichTapVibrationEffect#checkIfRichTapSupport}, so
+ * checking an HE version before a play is a field read. The client code and versions are the ones
+ * it reports, as is, and the HE versions follow the rules HapticPlayer always applied: none before
+ * 1.6, HE 1.0 on 1.6, HE 1.0 and 2.0 on 1.7, no restriction above.
+ *
+ * @hide
+ */
+public final class RichTapCapabilities {
+    private static final String TAG = "RichTapCapabilities";
+
+    private static final int VIBRATION_EFFECT_SUPPORT_NO = 2;
+
+    private static final int RICHTAP_VERSION_1_6 = 0x16;
+    private static final int RICHTAP_VERSION_1_7 = 0x17;
+
+    private final boolean mAvailable;
+    private final int mClientCode;
+    private final int mMajorVersion;
+    private final int mMinorVersion;
+    /** Bit n is set when HE version n can be played, all bits above 1.7. */
+    private final int mHeVersionMask;
+
+    private static final class Holder {
+        static final RichTapCapabilities sInstance =
+                new RichTapCapabilities(resolveSupport());
+    }
+
+    private RichTapCapabilities(int support) {
+        mAvailable = support != VIBRATION_EFFECT_SUPPORT_NO;
+        if (mAvailable) {
+            mClientCode = (support >> 16) & 0xFF;
+            mMajorVersion = (support >> 8) & 0xFF;
+            mMinorVersion = support & 0xFF;
+        } else {
+            mClientCode = 0;
+            mMajorVersion = 0;
+            mMinorVersion = 0;
+        }
+        if (mMajorVersion < RICHTAP_VERSION_1_6) {
+            mHeVersionMask = 0;
+        } else if (mMajorVersion == RICHTAP_VERSION_1_6) {
+            mHeVersionMask = 1 << 1;
+        } else if (mMajorVersion == RICHTAP_VERSION_1_7) {
+            mHeVersionMask = (1 << 1) | (1 << 2);
+        } else {
+            // a newer RichTap plays every HE version this client can produce
+            mHeVersionMask = ~0;
+        }
+        Log.d(TAG, "resolved " + this);
+    }
+
+    private static int resolveSupport() {
+        if (Build.VERSION.SDK_INT < HapticPlayer.ANDROID_VERSIONCODE_O) {
+            return VIBRATION_EFFECT_SUPPORT_NO;
+        }
+        return RichTapVibrationEffect.checkIfRichTapSupport();
+    }
+
+    /** Returns the capabilities of this device, resolved on first use. */
+    @NonNull
+    public static RichTapCapabilities get() {
+        return Holder.sInstance;
+    }
+
+    public boolean isAvailable() {
+        return mAvailable;
+    }
+
+    public int getClientCode() {
+        return mClientCode;
+    }
+
+    public int getMajorVersion() {
+        return mMajorVersion;
+    }
+
+    public int getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    /** Returns whether HE files of version {@code heVersion} can be played. */
+    public boolean supportsHeVersion(int heVersion) {
+        return heVersion > 0 && heVersion < Integer.SIZE && (mHeVersionMask & (1 << heVersion)) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RichTapCapabilities{available=" + mAvailable
+                + ", clientCode=" + mClientCode
+                + ", version=" + Integer.toHexString(mMajorVersion)
+                + "." + Integer.toHexString(mMinorVersion)
+                + ", heVersionMask=0x" + Integer.toHexString(mHeVersionMask)
+                + "}";
+    }
+}
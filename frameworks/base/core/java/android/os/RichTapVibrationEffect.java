@@ -17,6 +17,7 @@
 package android.os;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Arrays;
@@ -42,6 +43,59 @@ public class RichTapVibrationEffect {
     private static final int PARCEL_TOKEN_PATTERN_HE = 503;
     private static final int PARCEL_TOKEN_PATTERN_HE_LOOP_PARAMETER = 504;
     private static final int PARCEL_TOKEN_HAPTIC_PARAMETER = 505;
+    private static final int PARCEL_TOKEN_PREPARED_HE = 506;
+    private static final int PARCEL_TOKEN_TRIGGER_HE = 507;
+
+    /*
+     * Kind of a RichTap effect, see VibrationEffect#getRichTapKind(), stable since it is the
+     * parcel token of the effect.
+     */
+    /** @hide Not a RichTap effect. */
+    public static final int KIND_NONE = 0;
+    /** @hide */
+    public static final int KIND_EXT_PREBAKED = PARCEL_TOKEN_EXT_PREBAKED;
+    /** @hide */
+    public static final int KIND_ENVELOPE = PARCEL_TOKEN_ENVELOPE;
+    /** @hide */
+    public static final int KIND_PATTERN_HE = PARCEL_TOKEN_PATTERN_HE;
+    /** @hide */
+    public static final int KIND_PATTERN_HE_PARAMETER = PARCEL_TOKEN_PATTERN_HE_LOOP_PARAMETER;
+    /** @hide */
+    public static final int KIND_HAPTIC_PARAMETER = PARCEL_TOKEN_HAPTIC_PARAMETER;
+    /** @hide */
+    public static final int KIND_PREPARED_HE = PARCEL_TOKEN_PREPARED_HE;
+    /** @hide */
+    public static final int KIND_TRIGGER_HE = PARCEL_TOKEN_TRIGGER_HE;
+    /** @hide First and last RichTap kind, kinds are contiguous. */
+    public static final int KIND_FIRST = KIND_EXT_PREBAKED;
+    /** @hide */
+    public static final int KIND_LAST = KIND_TRIGGER_HE;
+
+    /** @hide Play time in ms, from the HAL call to its callback, of a completion result. */
+    public static final String EXTRA_PLAY_TIME_MS = "richtap:play_time_ms";
+    /** @hide Set in a completion result when the effect was stopped before it completed. */
+    public static final String EXTRA_STOPPED = "richtap:stopped";
+
+    /*
+     * Stage timestamps of a play, in the System.nanoTime() base shared by all processes, 0 when
+     * not taken. The client fills the first ones, the vibrator service the others.
+     */
+    /** @hide HapticPlayer start() called. */
+    public static final int TS_START = 0;
+    /** @hide Play picked up by the player worker. */
+    public static final int TS_DEQUEUE = 1;
+    /** @hide Effect parsed and serialized, or found compiled. */
+    public static final int TS_COMPILED = 2;
+    /** @hide First wrapper handed to the vibrator manager. */
+    public static final int TS_SEND = 3;
+    /** @hide Vibrator manager service received the wrapper. */
+    public static final int TS_SERVICE_ENTRY = 4;
+    /** @hide Wrapper dispatched to the RichTap service. */
+    public static final int TS_DISPATCH = 5;
+    /** @hide performHe returned. */
+    public static final int TS_HAL_DONE = 6;
+    /** @hide */
+    public static final int TS_COUNT = 7;
 	
     private static final int OPPO_CLIENT = 0x0001 << 16;
     private static final int ONEPLUS_CLIENT = 0x0002 << 16;
@@ -117,6 +171,60 @@ public class RichTapVibrationEffect {
         return effect;
     }
 
+    /**
+     * Same as {@link #createPatternHeWithParam}, {@code completion} receives the HAL result once
+     * the pattern completed or was stopped, with {@link #EXTRA_PLAY_TIME_MS} and
+     * {@link #EXTRA_STOPPED} in its bundle.
+     * @hide
+     */
+    @NonNull
+    public static VibrationEffect createPatternHeWithParam(@NonNull int[] patternInfo, int looper,
+            int interval, int amplitude, int freq, @Nullable ResultReceiver completion) {
+        return createPatternHeWithParam(patternInfo, looper, interval, amplitude, freq, completion,
+                null);
+    }
+
+    /**
+     * Same as {@link #createPatternHeWithParam(int[], int, int, int, int, ResultReceiver)},
+     * {@code timestamps} of length {@link #TS_COUNT} carries the stage timestamps of the play.
+     * @hide
+     */
+    @NonNull
+    public static VibrationEffect createPatternHeWithParam(@NonNull int[] patternInfo, int looper,
+            int interval, int amplitude, int freq, @Nullable ResultReceiver completion,
+            @Nullable long[] timestamps) {
+        PatternHe effect = new PatternHe(patternInfo, looper, interval, amplitude, freq);
+        effect.mCompletion = completion;
+        effect.mTimestamps = timestamps;
+        effect.validate();
+        return effect;
+    }
+
+    /**
+     * Registers compiled HE data with the vibrator service under {@code handle}, so it can be
+     * played later by {@link #createTriggerHe}. Empty {@code blocks} release the handle.
+     * @hide
+     */
+    @NonNull
+    public static VibrationEffect createPreparedHe(int handle, int pid, int heVersion,
+            @NonNull int[][] blocks) {
+        VibrationEffect effect = new PreparedHe(handle, pid, heVersion, blocks);
+        effect.validate();
+        return effect;
+    }
+
+    /**
+     * Plays the HE data registered by {@link #createPreparedHe} under {@code handle}.
+     * @hide
+     */
+    @NonNull
+    public static VibrationEffect createTriggerHe(int handle, int pid, int seq, int looper,
+            int interval, int amplitude, int freq) {
+        VibrationEffect effect = new TriggerHe(handle, pid, seq, looper, interval, amplitude, freq);
+        effect.validate();
+        return effect;
+    }
+
     /*
     * NEED MODIFY ON CUSTOM BRANCH
     */
@@ -206,6 +314,11 @@ public class RichTapVibrationEffect {
             return "ExtPrebaked{mEffectId=" + mEffectId + "mStrength = " + mStrength +"}";
         }
 
+        @Override
+        public int getRichTapKind() {
+            return KIND_EXT_PREBAKED;
+        }
+
         @Override
         public void writeToParcel(@NonNull Parcel out, int flags) {
             out.writeInt(PARCEL_TOKEN_EXT_PREBAKED);
@@ -340,6 +453,11 @@ public class RichTapVibrationEffect {
         }
 
 
+        @Override
+        public int getRichTapKind() {
+            return KIND_ENVELOPE;
+        }
+
         @Override
         public void writeToParcel(@NonNull Parcel out, int flags) {
             out.writeInt(PARCEL_TOKEN_ENVELOPE);
@@ -455,6 +573,11 @@ public class RichTapVibrationEffect {
         }
 
 
+        @Override
+        public int getRichTapKind() {
+            return KIND_PATTERN_HE_PARAMETER;
+        }
+
         @Override
         public void writeToParcel(@NonNull Parcel out, int flags) {
             out.writeInt(PARCEL_TOKEN_PATTERN_HE_LOOP_PARAMETER);
@@ -557,6 +680,11 @@ public class RichTapVibrationEffect {
         }
 
 
+        @Override
+        public int getRichTapKind() {
+            return KIND_HAPTIC_PARAMETER;
+        }
+
         @Override
         public void writeToParcel(@NonNull Parcel out, int flags) {
             out.writeInt(PARCEL_TOKEN_HAPTIC_PARAMETER);
@@ -591,6 +719,8 @@ public class RichTapVibrationEffect {
         private int mFreq;
         private long mDuration = 100 ;
         private int mEventCount;
+        private ResultReceiver mCompletion;
+        private long[] mTimestamps;
         /** @hide */
         public PatternHe(@NonNull Parcel in) {
             mPatternInfo = in.createIntArray();
@@ -598,6 +728,10 @@ public class RichTapVibrationEffect {
             mInterval = in.readInt();
             mAmplitude = in.readInt();
             mFreq = in.readInt();
+            if (in.readInt() != 0) {
+                mCompletion = ResultReceiver.CREATOR.createFromParcel(in);
+            }
+            mTimestamps = in.createLongArray();
         }
 
         public PatternHe(@NonNull int[] patternInfo, long duration, int eventCount) {
@@ -657,6 +791,21 @@ public class RichTapVibrationEffect {
         public int getFreq(){
             return mFreq;
         }
+
+        /** Returns the receiver of the completion result of this pattern, if any. */
+        public @Nullable ResultReceiver getCompletion(){
+            return mCompletion;
+        }
+
+        /** Returns the stage timestamps of the play, see {@link #TS_COUNT}, if any. */
+        public @Nullable long[] getTimestamps(){
+            return mTimestamps;
+        }
+
+        public void setTimestamps(@Nullable long[] timestamps){
+            mTimestamps = timestamps;
+        }
+
         @Override
         public void validate() {
 
@@ -688,6 +837,11 @@ public class RichTapVibrationEffect {
             return "PatternHe{mLooper=" + mLooper + ", mInterval=" + mInterval + "}";
         }
 
+        @Override
+        public int getRichTapKind() {
+            return KIND_PATTERN_HE;
+        }
+
         @Override
         public void writeToParcel(@NonNull Parcel out, int flags) {
             out.writeInt(PARCEL_TOKEN_PATTERN_HE);
@@ -696,6 +850,13 @@ public class RichTapVibrationEffect {
             out.writeInt(mInterval);
             out.writeInt(mAmplitude);
             out.writeInt(mFreq);
+            if (mCompletion != null) {
+                out.writeInt(1);
+                mCompletion.writeToParcel(out, flags);
+            } else {
+                out.writeInt(0);
+            }
+            out.writeLongArray(mTimestamps);
         }
 
         public static final @NonNull Parcelable.Creator<PatternHe> CREATOR =
@@ -713,6 +874,304 @@ public class RichTapVibrationEffect {
             };
     }
 
+    /**
+     * Compiled HE data registered ahead of time: the HE 1.0 realPatternHeInfo as a single block,
+     * or the HE 2.0 wrappers with their pid/seq slots left at zero.
+     * @hide
+     */
+    public static final class PreparedHe extends VibrationEffect implements Parcelable {
+        private static final int MAX_PREPARED_BLOCKS = 0xFFFF;
+
+        private final int mHandle;
+        private final int mPid;
+        private final int mHeVersion;
+        private final int[][] mBlocks;
+
+        /** @hide */
+        public PreparedHe(@NonNull Parcel in) {
+            mHandle = in.readInt();
+            mPid = in.readInt();
+            mHeVersion = in.readInt();
+            int count = in.readInt();
+            // read in system_server before any check: each block takes at least its length int,
+            // and an HE 2.0 file never needs more wrappers than its 16 bit pattern total
+            if (count < 0 || count > MAX_PREPARED_BLOCKS || count > in.dataAvail() / 4) {
+                throw new BadParcelableException("bad prepared he block count:" + count);
+            }
+            mBlocks = new int[count][];
+            for (int i = 0; i < mBlocks.length; i++) {
+                mBlocks[i] = in.createIntArray();
+                if (mBlocks[i] == null) {
+                    throw new BadParcelableException("bad prepared he block:" + i);
+                }
+            }
+        }
+
+        public PreparedHe(int handle, int pid, int heVersion, @NonNull int[][] blocks) {
+            mHandle = handle;
+            mPid = pid;
+            mHeVersion = heVersion;
+            mBlocks = blocks;
+        }
+
+        public int getHandle() {
+            return mHandle;
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        public int getHeVersion() {
+            return mHeVersion;
+        }
+
+        public @NonNull int[][] getBlocks() {
+            return mBlocks;
+        }
+
+        /** Returns whether this releases the handle instead of registering data. */
+        public boolean isRelease() {
+            return mBlocks.length == 0;
+        }
+
+        public PreparedHe resolve(int defaultAmplitude) {
+            return this;
+        }
+
+        public PreparedHe scale(float scaleFactor) {
+            return this;
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public long getDuration() {
+            return -1;
+        }
+
+        @Override
+        public void validate() {
+            if (mBlocks == null) {
+                throw new IllegalArgumentException("null he blocks");
+            }
+            for (int[] block : mBlocks) {
+                if (block == null || block.length == 0) {
+                    throw new IllegalArgumentException("empty he block");
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RichTapVibrationEffect.PreparedHe)) {
+                return false;
+            }
+            RichTapVibrationEffect.PreparedHe other = (RichTapVibrationEffect.PreparedHe) o;
+            return other.mHandle == mHandle && other.mPid == mPid
+                    && Arrays.deepEquals(other.mBlocks, mBlocks);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mHandle, mPid);
+        }
+
+        @Override
+        public String toString() {
+            return "PreparedHe{mHandle=" + mHandle + ", mPid=" + mPid + ", mHeVersion="
+                    + mHeVersion + ", blocks=" + mBlocks.length + "}";
+        }
+
+        @Override
+        public int getRichTapKind() {
+            return KIND_PREPARED_HE;
+        }
+
+        @Override
+        public void writeToParcel(@NonNull Parcel out, int flags) {
+            out.writeInt(PARCEL_TOKEN_PREPARED_HE);
+            out.writeInt(mHandle);
+            out.writeInt(mPid);
+            out.writeInt(mHeVersion);
+            out.writeInt(mBlocks.length);
+            for (int[] block : mBlocks) {
+                out.writeIntArray(block);
+            }
+        }
+
+        public static final @NonNull Parcelable.Creator<PreparedHe> CREATOR =
+            new Parcelable.Creator<PreparedHe>() {
+                @Override
+                public PreparedHe createFromParcel(@NonNull Parcel in) {
+                    // Skip the type token
+                    in.readInt();
+                    return new PreparedHe(in);
+                }
+                @Override
+                public @NonNull PreparedHe[] newArray(int size) {
+                    return new PreparedHe[size];
+                }
+            };
+    }
+
+    /**
+     * Plays HE data registered by a {@link PreparedHe}, only a handful of ints go over binder.
+     * @hide
+     */
+    public static final class TriggerHe extends VibrationEffect implements Parcelable {
+        private final int mHandle;
+        private final int mPid;
+        private final int mSeq;
+        private final int mLooper;
+        private final int mInterval;
+        private final int mAmplitude;
+        private final int mFreq;
+
+        /** @hide */
+        public TriggerHe(@NonNull Parcel in) {
+            mHandle = in.readInt();
+            mPid = in.readInt();
+            mSeq = in.readInt();
+            mLooper = in.readInt();
+            mInterval = in.readInt();
+            mAmplitude = in.readInt();
+            mFreq = in.readInt();
+        }
+
+        public TriggerHe(int handle, int pid, int seq, int looper, int interval, int amplitude,
+                int freq) {
+            mHandle = handle;
+            mPid = pid;
+            mSeq = seq;
+            mLooper = looper;
+            mInterval = interval;
+            mAmplitude = amplitude;
+            mFreq = freq;
+        }
+
+        public int getHandle() {
+            return mHandle;
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        public int getSeq() {
+            return mSeq;
+        }
+
+        public int getLooper() {
+            return mLooper;
+        }
+
+        public int getInterval() {
+            return mInterval;
+        }
+
+        public int getAmplitude() {
+            return mAmplitude;
+        }
+
+        public int getFreq() {
+            return mFreq;
+        }
+
+        public TriggerHe resolve(int defaultAmplitude) {
+            return this;
+        }
+
+        public TriggerHe scale(float scaleFactor) {
+            return this;
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public long getDuration() {
+            return 100;
+        }
+
+        @Override
+        public void validate() {
+            if (mLooper < 1) {
+                throw new IllegalArgumentException("looper must be positive (looper=" + mLooper + ")");
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RichTapVibrationEffect.TriggerHe)) {
+                return false;
+            }
+            RichTapVibrationEffect.TriggerHe other = (RichTapVibrationEffect.TriggerHe) o;
+            return other.mHandle == mHandle && other.mPid == mPid && other.mSeq == mSeq
+                    && other.mLooper == mLooper && other.mInterval == mInterval
+                    && other.mAmplitude == mAmplitude && other.mFreq == mFreq;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mHandle, mPid, mSeq, mLooper, mInterval, mAmplitude, mFreq);
+        }
+
+        @Override
+        public String toString() {
+            return "TriggerHe{mHandle=" + mHandle + ", mPid=" + mPid + ", mSeq=" + mSeq
+                    + ", mLooper=" + mLooper + ", mInterval=" + mInterval + "}";
+        }
+
+        @Override
+        public int getRichTapKind() {
+            return KIND_TRIGGER_HE;
+        }
+
+        @Override
+        public void writeToParcel(@NonNull Parcel out, int flags) {
+            out.writeInt(PARCEL_TOKEN_TRIGGER_HE);
+            out.writeInt(mHandle);
+            out.writeInt(mPid);
+            out.writeInt(mSeq);
+            out.writeInt(mLooper);
+            out.writeInt(mInterval);
+            out.writeInt(mAmplitude);
+            out.writeInt(mFreq);
+        }
+
+        public static final @NonNull Parcelable.Creator<TriggerHe> CREATOR =
+            new Parcelable.Creator<TriggerHe>() {
+                @Override
+                public TriggerHe createFromParcel(@NonNull Parcel in) {
+                    // Skip the type token
+                    in.readInt();
+                    return new TriggerHe(in);
+                }
+                @Override
+                public @NonNull TriggerHe[] newArray(int size) {
+                    return new TriggerHe[size];
+                }
+            };
+    }
+
+    /**
+     * Returns the kind of the RichTap effect {@code effect} plays, or {@link #KIND_NONE} if it
+     * isn't a single RichTap effect.
+     * @hide
+     */
+    public static int getKind(@NonNull CombinedVibration effect) {
+        if (effect instanceof CombinedVibration.Mono) {
+            return ((CombinedVibration.Mono) effect).getEffect().getRichTapKind();
+        }
+        return KIND_NONE;
+    }
+
     /** @hide */
     public static final boolean isExtendedEffect(int token) {
         switch (token) {
@@ -721,6 +1180,8 @@ public class RichTapVibrationEffect {
             case PARCEL_TOKEN_PATTERN_HE_LOOP_PARAMETER:
             case PARCEL_TOKEN_PATTERN_HE:
             case PARCEL_TOKEN_HAPTIC_PARAMETER:
+            case PARCEL_TOKEN_PREPARED_HE:
+            case PARCEL_TOKEN_TRIGGER_HE:
                 return true;
             default:
                 return false;
@@ -753,6 +1214,10 @@ public class RichTapVibrationEffect {
                             return new PatternHe(in);
                         case PARCEL_TOKEN_HAPTIC_PARAMETER:
                             return new HapticParameter(in);
+                        case PARCEL_TOKEN_PREPARED_HE:
+                            return new PreparedHe(in);
+                        case PARCEL_TOKEN_TRIGGER_HE:
+                            return new TriggerHe(in);
                         default:
                             throw new IllegalStateException(
                                 "Unexpected vibration event type token in parcel.");
@@ -504,6 +504,16 @@ public abstract class VibrationEffect implements Parcelable {
         return false;
     }
 
+    /**
+     * Returns the kind of this effect if it is a RichTap effect, one of
+     * {@code RichTapVibrationEffect.KIND_*}, or {@link RichTapVibrationEffect#KIND_NONE}.
+     *
+     * @hide
+     */
+    public int getRichTapKind() {
+        return RichTapVibrationEffect.KIND_NONE;
+    }
+
     /**
      * Resolve default values into integer amplitude numbers.
      *
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.vibrator;
+
+import android.annotation.Nullable;
+import android.os.HapticPlayer;
+import android.os.VibrationEffect;
+import android.os.vibrator.RampSegment;
+import android.os.vibrator.StepSegment;
+import android.os.vibrator.VibrationEffectSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Translates a {@link VibrationEffect.Composed} waveform of steps and ramps into HE 2.0
+ * wrappers, so the RichTap HAL plays it from one performHe call per wrapper instead of one
+ * on/setAmplitude call per step.
+ *
+ * <p>Every stretch of non zero amplitude becomes a continuous event, with a curve point at each
+ * step or ramp boundary: steps and linear ramps are reproduced as is, only the amplitude is
+ * rounded to the 1% steps of HE. Each event gets a pattern of its own, whose absolute time is the
+ * event start. An event longer than {@link #MAX_EVENT_DURATION} is cut in several, the amplitude
+ * at the cut being interpolated, and so is an event of more than {@link #MAX_POINT_COUNT} points,
+ * at its last point that fits.
+ *
+ * <p>A repeating waveform is played by the HE looper, the silence it ends with being the loop
+ * interval, see {@link #getLoopInterval}.
+ *
+ * <p>The waveform is not translated, and must be played step by step, when it is not exact in
+ * HE: another segment type, an amplitude left to the default, a frequency other than the device
+ * default, a repeat starting after the first segment, or a trailing silence of a repeating
+ * waveform longer than {@link #MAX_LOOP_INTERVAL}.
+ */
+final class RichTapComposedTranslator {
+    private static final int HE_VERSION = 2;
+    // limits of HapticPlayer for an HE 2.0 event and a wrapper
+    private static final int MAX_EVENT_DURATION = 5000;
+    private static final int MAX_POINT_COUNT = 16;
+    private static final int MAX_INTENSITY = 100;
+    private static final int MAX_WRAPPER_PATTERNS = 0xFFFF;
+    private static final int MAX_WRAPPER_INTS = 2048;
+    private static final int MAX_LOOP_INTERVAL = 1000;
+    // the device default frequency, middle of the HE scale, with no offset on the curve
+    private static final int DEFAULT_FREQUENCY = 50;
+
+    // wrapper: format, he version, pid, seq, (pattern count << 16) | total patterns
+    private static final int WRAPPER_HEADER_LEN = 5;
+    // pattern: index, absolute time, event count
+    private static final int PATTERN_HEADER_LEN = 3;
+    // event: type, length - 2, vib index, relative time, intensity, freq, duration, point count
+    private static final int EVENT_HEADER_LEN = 8;
+
+    private RichTapComposedTranslator() {
+    }
+
+    /**
+     * Returns the HE 2.0 wrappers playing {@code composed} once, tagged with the sender
+     * {@code pid}/{@code seq}, or null if it can't be translated exactly.
+     */
+    @Nullable
+    static int[][] translate(VibrationEffect.Composed composed, int pid, int seq) {
+        if (composed.getRepeatIndex() > 0) {
+            return null;
+        }
+        // the events end at the last non zero amplitude, a loop restarts there plus the interval
+        if (composed.getRepeatIndex() == 0 && getLoopInterval(composed) > MAX_LOOP_INTERVAL) {
+            return null;
+        }
+        // curve of the stretch of non zero amplitude being read, in absolute ms
+        long[] times = new long[16];
+        float[] amplitudes = new float[16];
+        int count = 0;
+        List<int[]> patterns = new ArrayList<>();
+        long time = 0;
+        for (VibrationEffectSegment segment : composed.getSegments()) {
+            float start;
+            float end;
+            long duration;
+            if (segment instanceof StepSegment) {
+                StepSegment step = (StepSegment) segment;
+                if (step.getFrequencyHz() != 0) {
+                    return null;
+                }
+                start = end = step.getAmplitude();
+                duration = step.getDuration();
+            } else if (segment instanceof RampSegment) {
+                RampSegment ramp = (RampSegment) segment;
+                if (ramp.getStartFrequencyHz() != 0 || ramp.getEndFrequencyHz() != 0) {
+                    return null;
+                }
+                start = ramp.getStartAmplitude();
+                end = ramp.getEndAmplitude();
+                duration = ramp.getDuration();
+            } else {
+                return null;
+            }
+            if (start < 0 || start > 1 || end < 0 || end > 1) {
+                // DEFAULT_AMPLITUDE not resolved
+                return null;
+            }
+            if (duration <= 0) {
+                continue;
+            }
+            if (start == 0 && end == 0) {
+                addEvents(patterns, times, amplitudes, count);
+                count = 0;
+            } else {
+                if (count + 2 > times.length) {
+                    times = Arrays.copyOf(times, times.length * 2);
+                    amplitudes = Arrays.copyOf(amplitudes, amplitudes.length * 2);
+                }
+                times[count] = time;
+                amplitudes[count++] = start;
+                times[count] = time + duration;
+                amplitudes[count++] = end;
+            }
+            time += duration;
+        }
+        addEvents(patterns, times, amplitudes, count);
+        if (patterns.isEmpty() || patterns.size() > MAX_WRAPPER_PATTERNS) {
+            return null;
+        }
+        return wrap(patterns, pid, seq);
+    }
+
+    /**
+     * Returns the silence {@code composed} ends with, in ms: the interval to loop its wrappers
+     * with, since their events stop at the last non zero amplitude.
+     */
+    static int getLoopInterval(VibrationEffect.Composed composed) {
+        List<VibrationEffectSegment> segments = composed.getSegments();
+        long interval = 0;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            VibrationEffectSegment segment = segments.get(i);
+            if (segment instanceof StepSegment) {
+                StepSegment step = (StepSegment) segment;
+                if (step.getAmplitude() != 0) {
+                    break;
+                }
+                interval += step.getDuration();
+            } else if (segment instanceof RampSegment) {
+                RampSegment ramp = (RampSegment) segment;
+                if (ramp.getStartAmplitude() != 0 || ramp.getEndAmplitude() != 0) {
+                    break;
+                }
+                interval += ramp.getDuration();
+            } else {
+                break;
+            }
+        }
+        return (int) Math.min(interval, Integer.MAX_VALUE);
+    }
+
+    /** Adds the events, one pattern each, of the curve of {@code count} points. */
+    private static void addEvents(List<int[]> patterns, long[] times, float[] amplitudes,
+            int count) {
+        if (count < 2) {
+            return;
+        }
+        long end = times[count - 1];
+        // next point to write, every point before it is at or before the event start
+        int next = 0;
+        for (long start = times[0], eventEnd; start < end; start = eventEnd) {
+            eventEnd = Math.min(start + MAX_EVENT_DURATION, end);
+            while (next < count && times[next] <= start) {
+                next++;
+            }
+            int last = next;
+            while (last < count && times[last] < eventEnd) {
+                last++;
+            }
+            if (last - next + 2 > MAX_POINT_COUNT) {
+                // cut at the last point fitting, it ends this event and starts the next one
+                last = next + MAX_POINT_COUNT - 2;
+                eventEnd = times[last];
+            }
+            // a point at each end plus the ones in between
+            int pointCount = last - next + 2;
+            int[] pattern = new int[PATTERN_HEADER_LEN + EVENT_HEADER_LEN + pointCount * 3];
+            pattern[1] = (int) start;
+            pattern[2] = 1;
+            int offset = PATTERN_HEADER_LEN;
+            pattern[offset] = HapticPlayer.CONTINUOUS_EVENT;
+            pattern[offset + 1] = EVENT_HEADER_LEN + pointCount * 3 - 2;
+            pattern[offset + 4] = MAX_INTENSITY;
+            pattern[offset + 5] = DEFAULT_FREQUENCY;
+            pattern[offset + 6] = (int) (eventEnd - start);
+            pattern[offset + 7] = pointCount;
+            offset += EVENT_HEADER_LEN;
+            // the last point at the start time wins, the first point at the end time does
+            offset = writePoint(pattern, offset, 0,
+                    times[next - 1] == start ? amplitudes[next - 1]
+                            : interpolate(times, amplitudes, next - 1, start));
+            for (; next < last; next++) {
+                offset = writePoint(pattern, offset, times[next] - start, amplitudes[next]);
+            }
+            writePoint(pattern, offset, eventEnd - start,
+                    times[last] == eventEnd ? amplitudes[last]
+                            : interpolate(times, amplitudes, last - 1, eventEnd));
+            patterns.add(pattern);
+        }
+    }
+
+    /** Returns the amplitude at {@code time}, between points {@code i} and {@code i + 1}. */
+    private static float interpolate(long[] times, float[] amplitudes, int i, long time) {
+        float fraction = (float) (time - times[i]) / (times[i + 1] - times[i]);
+        return amplitudes[i] + (amplitudes[i + 1] - amplitudes[i]) * fraction;
+    }
+
+    private static int writePoint(int[] data, int offset, long time, float amplitude) {
+        data[offset] = (int) time;
+        // scale of the event intensity, times 100 like in HeParser
+        data[offset + 1] = Math.min(MAX_INTENSITY, Math.round(amplitude * MAX_INTENSITY));
+        data[offset + 2] = 0;
+        return offset + 3;
+    }
+
+    /** Packs the patterns into wrappers of at most {@link #MAX_WRAPPER_INTS}, if they fit. */
+    private static int[][] wrap(List<int[]> patterns, int pid, int seq) {
+        List<int[]> wrappers = new ArrayList<>();
+        int total = patterns.size();
+        for (int from = 0; from < total; ) {
+            int len = WRAPPER_HEADER_LEN;
+            int to = from;
+            while (to < total
+                    && (to == from || len + patterns.get(to).length <= MAX_WRAPPER_INTS)) {
+                len += patterns.get(to++).length;
+            }
+            int[] wrapper = new int[len];
+            wrapper[0] = HapticPlayer.FORMAT_VERSION;
+            wrapper[1] = HE_VERSION;
+            wrapper[2] = pid;
+            wrapper[3] = seq;
+            wrapper[4] = (total & 0xFFFF) | ((to - from) << 16);
+            int offset = WRAPPER_HEADER_LEN;
+            for (int i = from; i < to; i++) {
+                int[] pattern = patterns.get(i);
+                pattern[0] = i;
+                System.arraycopy(pattern, 0, wrapper, offset, pattern.length);
+                offset += pattern.length;
+            }
+            wrappers.add(wrapper);
+            from = to;
+        }
+        return wrappers.toArray(new int[0][]);
+    }
+}
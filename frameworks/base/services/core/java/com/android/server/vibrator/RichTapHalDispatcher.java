@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.vibrator;
+
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+import vendor.aac.hardware.richtap.vibrator.IRichtapVibrator;
+
+/**
+ * Single ordered thread making the RichTap HAL calls, so callers holding the vibrator manager
+ * lock only pay for a queue insert, whatever the HAL latency.
+ *
+ * <p>A command is merged with the pending command just before it when playing both gives the same
+ * result as playing the last one: a stop after a stop, a play of a new effect after a stop (the
+ * HAL replaces what it plays) and an amplitude after an amplitude. An HE parameter update is
+ * merged into the update before it when {@link Command#mergeFrom} accepts it, field by field.
+ * Commands further back are never touched, so the HAL still sees the calls in order.
+ *
+ * <p>Every call made, or not made for lack of a HAL, is recorded in {@link RichTapMetrics}.
+ */
+final class RichTapHalDispatcher {
+    private static final String TAG = "RichTapHalDispatcher";
+
+    /** Mode and haptic parameters, never merged. */
+    static final int KIND_CONFIG = 0;
+    static final int KIND_STOP = 1;
+    static final int KIND_PLAY = 2;
+    static final int KIND_AMPLITUDE = 3;
+    static final int KIND_HE_PARAM = 4;
+
+    /** One HAL call, made on the dispatch thread. */
+    abstract static class Command {
+        final int mKind;
+        // a play that replaces whatever the HAL plays, rather than continuing it
+        final boolean mStartsEffect;
+        // RichTapMetrics.OP_* of the call, the uid it is made for and the ints it sends
+        final int mOp;
+        final int mUid;
+        final int mPayloadSize;
+
+        Command(int kind, int op) {
+            this(kind, false, op, Process.INVALID_UID, 0);
+        }
+
+        Command(int kind, boolean startsEffect, int op, int uid, int payloadSize) {
+            mKind = kind;
+            mStartsEffect = startsEffect;
+            mOp = op;
+            mUid = uid;
+            mPayloadSize = payloadSize;
+        }
+
+        /** Makes the HAL call, returns what it returned, 0 for the void ones. */
+        abstract int call(IRichtapVibrator hal) throws RemoteException;
+
+        /** The call failed or could not be made. */
+        void onFailed() {
+        }
+
+        /**
+         * Takes over what {@code last}, the pending command of the same kind, would have done.
+         *
+         * @return false if {@code last} must be kept
+         */
+        boolean mergeFrom(Command last) {
+            return true;
+        }
+    }
+
+    @GuardedBy("mQueue")
+    private final ArrayDeque<Command> mQueue = new ArrayDeque<>();
+    @GuardedBy("mQueue")
+    private Thread mThread;
+    @GuardedBy("mQueue")
+    private long mDispatchedCount;
+    @GuardedBy("mQueue")
+    private long mMergedCount;
+    private final Supplier<IRichtapVibrator> mHal;
+    private final RichTapMetrics mMetrics;
+
+    RichTapHalDispatcher(Supplier<IRichtapVibrator> hal, RichTapMetrics metrics) {
+        mHal = hal;
+        mMetrics = metrics;
+    }
+
+    /** Queues {@code command} after the pending ones, merging it with the last one if it can. */
+    void enqueue(Command command) {
+        synchronized (mQueue) {
+            Command last = mQueue.peekLast();
+            if (last != null && canReplace(last, command)) {
+                mQueue.pollLast();
+                mMergedCount++;
+            }
+            mQueue.addLast(command);
+            if (mThread == null) {
+                mThread = new Thread(this::dispatchLoop, "RichTapHal");
+                mThread.start();
+            } else {
+                mQueue.notify();
+            }
+        }
+    }
+
+    private static boolean canReplace(Command last, Command command) {
+        switch (command.mKind) {
+            case KIND_PLAY:
+                return last.mKind == KIND_STOP && command.mStartsEffect;
+            case KIND_STOP:
+                return last.mKind == command.mKind;
+            case KIND_AMPLITUDE:
+            case KIND_HE_PARAM:
+                return last.mKind == command.mKind && command.mergeFrom(last);
+            default:
+                return false;
+        }
+    }
+
+    private void dispatchLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        while (true) {
+            Command command;
+            synchronized (mQueue) {
+                while (mQueue.isEmpty()) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        // keep dispatching, the thread lives as long as the service
+                    }
+                }
+                command = mQueue.pollFirst();
+                mDispatchedCount++;
+            }
+            dispatch(command);
+        }
+    }
+
+    private void dispatch(Command command) {
+        IRichtapVibrator hal = mHal.get();
+        long start = System.nanoTime();
+        int result;
+        if (hal == null) {
+            result = RichTapMetrics.RESULT_NO_HAL;
+        } else {
+            try {
+                result = command.call(hal);
+            } catch (RemoteException | RuntimeException e) {
+                Slog.e(TAG, "aac richtap " + RichTapMetrics.opName(command.mOp) + " fail.", e);
+                result = RichTapMetrics.RESULT_EXCEPTION;
+            }
+        }
+        mMetrics.record(command.mOp, command.mUid, command.mPayloadSize,
+                System.nanoTime() - start, result);
+        if (result == RichTapMetrics.RESULT_NO_HAL || result == RichTapMetrics.RESULT_EXCEPTION) {
+            command.onFailed();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mQueue) {
+            pw.println("  RichTap hal dispatch: pending=" + mQueue.size()
+                    + " dispatched=" + mDispatchedCount + " merged=" + mMergedCount);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.vibrator;
+
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HE 2.0 wrapper streams in flight, one per sender.
+ *
+ * <p>A multi-wrapper HE 2.0 effect reaches the service as a stream of wrappers sharing the
+ * sender pid/seq, the HAL reassembles them. A stream is keyed here by the calling uid and the
+ * sender pid/seq, since pid/seq are written by the client, and only holds its progress, never
+ * pattern data. Arbitration is last-start-wins, as for every other vibration: the first wrapper
+ * of a stream takes the actuator, the stream it took it from is preempted and its later wrappers
+ * are dropped instead of being mixed into the new effect. The wrappers of the stream owning the
+ * actuator are appended without stopping the HAL.
+ *
+ * <p>At most {@link #MAX_STREAMS} streams are tracked, the least recently active one is dropped
+ * first, and a stream that got no wrapper for {@link #STREAM_TIMEOUT_MS} is abandoned.
+ */
+final class RichTapHeStreams {
+    private static final String TAG = "RichTapHeStreams";
+
+    /** Not an HE 2.0 wrapper, it takes the actuator like any other vibration. */
+    static final int RESULT_NONE = 0;
+    /** First wrapper of a stream, which now owns the actuator. */
+    static final int RESULT_START = 1;
+    /** Next wrapper of the stream owning the actuator, to be appended. */
+    static final int RESULT_CONTINUE = 2;
+    /** Wrapper of a preempted, abandoned or broken stream, not to be played. */
+    static final int RESULT_DROP = 3;
+
+    private static final int MAX_STREAMS = 16;
+    private static final long STREAM_TIMEOUT_MS = 3000;
+
+    // wrapper layout: [format, heVersion, pid, seq, (patternNum << 16) | total, first index...]
+    private static final int FORMAT_HE2_0 = 0x02;
+    private static final int PID_INDEX = 2;
+    private static final int SEQ_INDEX = 3;
+    private static final int COUNT_INDEX = 4;
+    private static final int FIRST_PATTERN_INDEX = 5;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<Key, Stream> mStreams =
+            new LinkedHashMap<Key, Stream>(MAX_STREAMS, 0.75f, /* accessOrder= */ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Stream> eldest) {
+                    if (size() <= MAX_STREAMS) {
+                        return false;
+                    }
+                    Slog.w(TAG, "too many he streams, drop " + eldest.getKey());
+                    if (eldest.getValue() == mOwner) {
+                        mOwner = null;
+                    }
+                    return true;
+                }
+            };
+    @GuardedBy("this")
+    private Stream mOwner;
+    @GuardedBy("this")
+    private long mStartedCount;
+    @GuardedBy("this")
+    private long mPreemptedCount;
+    @GuardedBy("this")
+    private long mDroppedCount;
+    @GuardedBy("this")
+    private long mExpiredCount;
+
+    /** Returns whether {@code pattern} is an HE 2.0 wrapper. */
+    static boolean isWrapper(int[] pattern) {
+        return pattern != null && pattern.length > FIRST_PATTERN_INDEX
+                && pattern[0] == FORMAT_HE2_0;
+    }
+
+    /** Returns whether {@code pattern} is an HE 2.0 wrapper other than the first of its stream. */
+    static boolean isContinuation(int[] pattern) {
+        return isWrapper(pattern) && pattern[FIRST_PATTERN_INDEX] != 0;
+    }
+
+    /**
+     * Decides what to do with {@code pattern}, sent by {@code uid}, and moves its stream forward.
+     *
+     * @return one of the {@code RESULT_*} constants
+     */
+    synchronized int admit(int uid, int[] pattern, long nowMs) {
+        if (!isWrapper(pattern)) {
+            // anything else stops the HAL, so no stream can be continued after it
+            mOwner = null;
+            return RESULT_NONE;
+        }
+        expireLocked(nowMs);
+        Key key = new Key(uid, pattern[PID_INDEX], pattern[SEQ_INDEX]);
+        int total = pattern[COUNT_INDEX] & 0xFFFF;
+        int count = (pattern[COUNT_INDEX] >>> 16) & 0xFFFF;
+        int first = pattern[FIRST_PATTERN_INDEX];
+
+        if (first == 0) {
+            Stream stream = new Stream(key, total, count, nowMs);
+            mStreams.put(key, stream);
+            if (mOwner != null) {
+                mPreemptedCount++;
+                Slog.d(TAG, key + " preempts " + mOwner.mKey);
+            }
+            mStartedCount++;
+            mOwner = stream;
+            finishIfCompleteLocked(stream);
+            return RESULT_START;
+        }
+
+        Stream stream = mStreams.get(key);
+        if (stream == null || stream != mOwner || first != stream.mNext) {
+            if (stream != null && stream == mOwner) {
+                // a missing wrapper, the HAL can't rebuild the effect any more
+                Slog.w(TAG, key + " expected pattern " + stream.mNext + " got " + first);
+                mStreams.remove(key);
+                mOwner = null;
+            } else if (stream != null) {
+                // preempted, none of its wrappers will play again
+                mStreams.remove(key);
+            }
+            mDroppedCount++;
+            return RESULT_DROP;
+        }
+        stream.mNext += count;
+        stream.mLastActiveMs = nowMs;
+        finishIfCompleteLocked(stream);
+        return RESULT_CONTINUE;
+    }
+
+    /** The HAL was stopped, the stream owning the actuator can't be continued any more. */
+    synchronized void releaseOwner() {
+        if (mOwner != null) {
+            mStreams.remove(mOwner.mKey);
+            mOwner = null;
+        }
+    }
+
+    /** Forgets every stream, the HAL lost them. */
+    synchronized void reset() {
+        mStreams.clear();
+        mOwner = null;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  RichTap he streams: active=" + mStreams.size()
+                + " owner=" + (mOwner == null ? null : mOwner.mKey)
+                + " started=" + mStartedCount + " preempted=" + mPreemptedCount
+                + " dropped=" + mDroppedCount + " expired=" + mExpiredCount);
+    }
+
+    @GuardedBy("this")
+    private void finishIfCompleteLocked(Stream stream) {
+        if (stream.mNext >= stream.mTotal) {
+            // the owner keeps playing its last patterns, but nothing can be appended to it
+            mStreams.remove(stream.mKey);
+            if (stream == mOwner) {
+                mOwner = null;
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void expireLocked(long nowMs) {
+        Iterator<Stream> it = mStreams.values().iterator();
+        while (it.hasNext()) {
+            Stream stream = it.next();
+            if (nowMs - stream.mLastActiveMs > STREAM_TIMEOUT_MS) {
+                it.remove();
+                mExpiredCount++;
+                if (stream == mOwner) {
+                    mOwner = null;
+                }
+            }
+        }
+    }
+
+    private static final class Stream {
+        final Key mKey;
+        final int mTotal;
+        // index of the first pattern of the next wrapper
+        int mNext;
+        long mLastActiveMs;
+
+        Stream(Key key, int total, int count, long nowMs) {
+            mKey = key;
+            mTotal = total;
+            mNext = count;
+            mLastActiveMs = nowMs;
+        }
+    }
+
+    private static final class Key {
+        final int mUid;
+        final int mPid;
+        final int mSeq;
+
+        Key(int uid, int pid, int seq) {
+            mUid = uid;
+            mPid = pid;
+            mSeq = seq;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mUid == other.mUid && mPid == other.mPid && mSeq == other.mSeq;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mUid * 31 + mPid) * 31 + mSeq;
+        }
+
+        @Override
+        public String toString() {
+            return "stream{uid=" + mUid + ", pid=" + mPid + ", seq=" + mSeq + "}";
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.vibrator;
+
+import android.os.RichTapVibrationEffect;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the RichTap play path, per stage and per effect type.
+ *
+ * <p>Stages are measured between the timestamps carried by a play, see
+ * {@link RichTapVibrationEffect#TS_COUNT}; all of them are in the System.nanoTime() base, which
+ * is the same in every process. Recording is lock-free so it can stay on the play path, a dump
+ * reads the counters without stopping writers and may be off by the samples recorded meanwhile.
+ */
+final class RichTapLatencyStats {
+    static final int TYPE_HE1 = 0;
+    static final int TYPE_HE2 = 1;
+    static final int TYPE_TRIGGER = 2;
+    static final int TYPE_ENVELOPE = 3;
+    static final int TYPE_PREBAKED = 4;
+    private static final String[] TYPE_NAMES = {"he1", "he2", "trigger", "envelope", "prebaked"};
+
+    /** start() to the player worker picking the play up. */
+    static final int STAGE_QUEUE = 0;
+    /** Parse and serialization of the effect, nothing when found compiled. */
+    static final int STAGE_COMPILE = 1;
+    /** Compiled to the vibrate call of the first wrapper. */
+    static final int STAGE_CLIENT_SEND = 2;
+    /** Vibrate call to the vibrator manager service. */
+    static final int STAGE_BINDER = 3;
+    /** vibrateInternal to the RichTap service, locks and checks included. */
+    static final int STAGE_SERVICE = 4;
+    /** HAL call. */
+    static final int STAGE_HAL = 5;
+    /** start() to the HAL call returning. */
+    static final int STAGE_TOTAL = 6;
+    private static final String[] STAGE_NAMES = {
+            "queue", "compile", "client_send", "binder", "service", "hal", "total"};
+
+    // stage n goes from STAGE_FROM[n] to STAGE_TO[n]
+    private static final int[] STAGE_FROM = {
+            RichTapVibrationEffect.TS_START, RichTapVibrationEffect.TS_DEQUEUE,
+            RichTapVibrationEffect.TS_COMPILED, RichTapVibrationEffect.TS_SEND,
+            RichTapVibrationEffect.TS_SERVICE_ENTRY, RichTapVibrationEffect.TS_DISPATCH,
+            RichTapVibrationEffect.TS_START};
+    private static final int[] STAGE_TO = {
+            RichTapVibrationEffect.TS_DEQUEUE, RichTapVibrationEffect.TS_COMPILED,
+            RichTapVibrationEffect.TS_SEND, RichTapVibrationEffect.TS_SERVICE_ENTRY,
+            RichTapVibrationEffect.TS_DISPATCH, RichTapVibrationEffect.TS_HAL_DONE,
+            RichTapVibrationEffect.TS_HAL_DONE};
+
+    private final Histogram[][] mHistograms =
+            new Histogram[TYPE_NAMES.length][STAGE_NAMES.length];
+
+    RichTapLatencyStats() {
+        for (Histogram[] stages : mHistograms) {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new Histogram();
+            }
+        }
+    }
+
+    /** Records every stage of {@code timestamps} whose two ends were taken. */
+    void record(int type, long[] timestamps) {
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            long from = timestamps[STAGE_FROM[stage]];
+            long to = timestamps[STAGE_TO[stage]];
+            if (from != 0 && to != 0) {
+                recordStage(type, stage, to - from);
+            }
+        }
+    }
+
+    void recordStage(int type, int stage, long nanos) {
+        mHistograms[type][stage].add(nanos / 1000);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  RichTap latency (us, p50/p95/p99/max count):");
+        boolean empty = true;
+        for (int type = 0; type < TYPE_NAMES.length; type++) {
+            boolean typeShown = false;
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                Histogram histogram = mHistograms[type][stage];
+                if (histogram.mCount.get() == 0) {
+                    continue;
+                }
+                if (!typeShown) {
+                    pw.println("    " + TYPE_NAMES[type] + ":");
+                    typeShown = true;
+                }
+                pw.println("      " + STAGE_NAMES[stage] + ": " + histogram);
+            }
+            empty &= !typeShown;
+        }
+        if (empty) {
+            pw.println("    none");
+        }
+    }
+
+    /**
+     * Log-linear histogram of microsecond values: exact below 8us, then 4 buckets per power of
+     * two, so a percentile is off by at most a quarter of its value.
+     */
+    private static final class Histogram {
+        private static final int LINEAR_BUCKETS = 8;
+        private static final int SUB_BUCKETS = 4;
+        // up to 2^34us, more than 4 hours
+        private static final int MAX_EXPONENT = 33;
+        private static final int BUCKETS =
+                LINEAR_BUCKETS + (MAX_EXPONENT - 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void add(long micros) {
+            if (micros < 0) {
+                // clock went backwards between the two ends, not a latency
+                return;
+            }
+            mBuckets.incrementAndGet(bucketOf(micros));
+            mCount.incrementAndGet();
+            long max = mMax.get();
+            while (micros > max && !mMax.compareAndSet(max, micros)) {
+                max = mMax.get();
+            }
+        }
+
+        private static int bucketOf(long micros) {
+            if (micros < LINEAR_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            if (exponent > MAX_EXPONENT) {
+                return BUCKETS - 1;
+            }
+            int sub = (int) (micros >> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return LINEAR_BUCKETS + (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        /** Returns the largest value that lands in {@code bucket}. */
+        private static long upperBoundOf(int bucket) {
+            if (bucket < LINEAR_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 3;
+            int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+        }
+
+        @Override
+        public String toString() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mBuckets.get(i);
+                total += counts[i];
+            }
+            return percentile(counts, total, 50) + "/" + percentile(counts, total, 95) + "/"
+                    + percentile(counts, total, 99) + "/" + mMax.get() + " " + total;
+        }
+
+        private static long percentile(long[] counts, long total, int percent) {
+            // rank of the sample, 1-based, rounded up
+            long rank = Math.max(1, (total * percent + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBoundOf(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
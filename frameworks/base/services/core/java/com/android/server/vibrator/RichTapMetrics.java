@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2021 The Android AAC vibraiton extension
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.vibrator;
+
+import android.os.Process;
+import android.util.proto.ProtoOutputStream;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counters of the RichTap HAL calls and the last {@link #HISTORY_SIZE} of them, for dumpsys.
+ *
+ * <p>Everything is recorded without locks, from the HAL dispatch thread and the HAL callback
+ * binder threads. A dump reads while writers keep going, so it may be off by the calls made
+ * meanwhile.
+ */
+final class RichTapMetrics {
+    static final int OP_PERFORM_HE = 0;
+    static final int OP_PERFORM_ENVELOPE = 1;
+    static final int OP_PERFORM = 2;
+    static final int OP_PERFORM_HE_PARAM = 3;
+    static final int OP_ON = 4;
+    static final int OP_OFF = 5;
+    static final int OP_STOP = 6;
+    static final int OP_SET_AMPLITUDE = 7;
+    static final int OP_SET_HAPTIC_PARAM = 8;
+    private static final String[] OP_NAMES = {"performHe", "performEnvelope", "perform",
+            "performHeParam", "on", "off", "stop", "setAmplitude", "setHapticParam"};
+
+    /** Result of a call that threw. */
+    static final int RESULT_EXCEPTION = Integer.MIN_VALUE;
+    /** Result of a call not made, the HAL was not connected. */
+    static final int RESULT_NO_HAL = Integer.MIN_VALUE + 1;
+
+    static final int HISTORY_SIZE = 64;
+
+    // not in VibratorManagerServiceDumpProto, the RichTap message is written as its field 1000,
+    // far above the upstream fields, and decoders not knowing it skip it
+    static final long RICHTAP_METRICS = ProtoOutputStream.makeFieldId(1000,
+            ProtoOutputStream.FIELD_TYPE_MESSAGE | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    // RichTapMetrics message
+    private static final long OPERATIONS = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_TYPE_MESSAGE | ProtoOutputStream.FIELD_COUNT_REPEATED);
+    private static final long CALLBACK_OK_COUNT = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_TYPE_INT64 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long CALLBACK_ERROR_COUNT = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_TYPE_INT64 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long LAST_CALLBACK_ERROR = ProtoOutputStream.makeFieldId(4,
+            ProtoOutputStream.FIELD_TYPE_INT32 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long HISTORY = ProtoOutputStream.makeFieldId(5,
+            ProtoOutputStream.FIELD_TYPE_MESSAGE | ProtoOutputStream.FIELD_COUNT_REPEATED);
+    // Operation message
+    private static final long OPERATION_NAME = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_TYPE_STRING | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long OPERATION_CALL_COUNT = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_TYPE_INT64 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long OPERATION_FAILURE_COUNT = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_TYPE_INT64 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long OPERATION_NO_HAL_COUNT = ProtoOutputStream.makeFieldId(4,
+            ProtoOutputStream.FIELD_TYPE_INT64 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    // Request message
+    private static final long REQUEST_TIME_MS = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_TYPE_INT64 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long REQUEST_UID = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_TYPE_INT32 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long REQUEST_OPERATION = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_TYPE_STRING | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long REQUEST_PAYLOAD_SIZE = ProtoOutputStream.makeFieldId(4,
+            ProtoOutputStream.FIELD_TYPE_INT32 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long REQUEST_LATENCY_US = ProtoOutputStream.makeFieldId(5,
+            ProtoOutputStream.FIELD_TYPE_INT64 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+    private static final long REQUEST_RESULT = ProtoOutputStream.makeFieldId(6,
+            ProtoOutputStream.FIELD_TYPE_INT32 | ProtoOutputStream.FIELD_COUNT_SINGLE);
+
+    private static final SimpleDateFormat DEBUG_DATE_FORMAT =
+            new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+
+    private final AtomicLongArray mCallCounts = new AtomicLongArray(OP_NAMES.length);
+    private final AtomicLongArray mFailureCounts = new AtomicLongArray(OP_NAMES.length);
+    private final AtomicLongArray mNoHalCounts = new AtomicLongArray(OP_NAMES.length);
+    private final AtomicLong mCallbackOkCount = new AtomicLong();
+    private final AtomicLong mCallbackErrorCount = new AtomicLong();
+    private volatile int mLastCallbackError;
+    // slot of the request n is n % HISTORY_SIZE
+    private final AtomicReferenceArray<Request> mHistory =
+            new AtomicReferenceArray<>(HISTORY_SIZE);
+    private final AtomicLong mNextRequest = new AtomicLong();
+
+    static String opName(int op) {
+        return OP_NAMES[op];
+    }
+
+    /**
+     * Records a HAL call of {@code op} made for {@code uid}, {@link Process#INVALID_UID} if not
+     * made for an app.
+     *
+     * @param payloadSize number of ints sent to the HAL
+     * @param result what the HAL call returned, 0 for the void ones, or a {@code RESULT_*}
+     */
+    void record(int op, int uid, int payloadSize, long latencyNanos, int result) {
+        mCallCounts.incrementAndGet(op);
+        if (result == RESULT_EXCEPTION) {
+            mFailureCounts.incrementAndGet(op);
+        } else if (result == RESULT_NO_HAL) {
+            mNoHalCounts.incrementAndGet(op);
+        }
+        Request request = new Request(System.currentTimeMillis(), uid, op, payloadSize,
+                latencyNanos / 1000, result);
+        mHistory.set((int) (mNextRequest.getAndIncrement() % HISTORY_SIZE), request);
+    }
+
+    /** Records a result reported by the HAL through IRichtapCallback. */
+    void recordCallback(int result) {
+        if (result == 0) {
+            mCallbackOkCount.incrementAndGet();
+        } else {
+            mLastCallbackError = result;
+            mCallbackErrorCount.incrementAndGet();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  RichTap hal calls (calls/failures/no hal):");
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            long calls = mCallCounts.get(op);
+            if (calls != 0) {
+                pw.println("    " + OP_NAMES[op] + ": " + calls + "/" + mFailureCounts.get(op)
+                        + "/" + mNoHalCounts.get(op));
+            }
+        }
+        pw.println("  RichTap hal callbacks: ok=" + mCallbackOkCount.get()
+                + " error=" + mCallbackErrorCount.get()
+                + " lastError=" + mLastCallbackError);
+        pw.println("  RichTap recent hal calls:");
+        for (Request request : getHistory()) {
+            pw.println("    " + request);
+        }
+    }
+
+    void dumpProto(ProtoOutputStream proto) {
+        long token = proto.start(RICHTAP_METRICS);
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            long opToken = proto.start(OPERATIONS);
+            proto.write(OPERATION_NAME, OP_NAMES[op]);
+            proto.write(OPERATION_CALL_COUNT, mCallCounts.get(op));
+            proto.write(OPERATION_FAILURE_COUNT, mFailureCounts.get(op));
+            proto.write(OPERATION_NO_HAL_COUNT, mNoHalCounts.get(op));
+            proto.end(opToken);
+        }
+        proto.write(CALLBACK_OK_COUNT, mCallbackOkCount.get());
+        proto.write(CALLBACK_ERROR_COUNT, mCallbackErrorCount.get());
+        proto.write(LAST_CALLBACK_ERROR, mLastCallbackError);
+        for (Request request : getHistory()) {
+            long requestToken = proto.start(HISTORY);
+            proto.write(REQUEST_TIME_MS, request.mTimeMs);
+            proto.write(REQUEST_UID, request.mUid);
+            proto.write(REQUEST_OPERATION, OP_NAMES[request.mOp]);
+            proto.write(REQUEST_PAYLOAD_SIZE, request.mPayloadSize);
+            proto.write(REQUEST_LATENCY_US, request.mLatencyUs);
+            proto.write(REQUEST_RESULT, request.mResult);
+            proto.end(requestToken);
+        }
+        proto.end(token);
+    }
+
+    /** Returns the recorded requests, oldest first. */
+    private Request[] getHistory() {
+        long next = mNextRequest.get();
+        int count = (int) Math.min(next, HISTORY_SIZE);
+        Request[] history = new Request[count];
+        int size = 0;
+        for (long n = next - count; n < next; n++) {
+            Request request = mHistory.get((int) (n % HISTORY_SIZE));
+            // a writer may not have filled its slot yet
+            if (request != null) {
+                history[size++] = request;
+            }
+        }
+        return size == count ? history : Arrays.copyOf(history, size);
+    }
+
+    private static final class Request {
+        final long mTimeMs;
+        final int mUid;
+        final int mOp;
+        final int mPayloadSize;
+        final long mLatencyUs;
+        final int mResult;
+
+        Request(long timeMs, int uid, int op, int payloadSize, long latencyUs, int result) {
+            mTimeMs = timeMs;
+            mUid = uid;
+            mOp = op;
+            mPayloadSize = payloadSize;
+            mLatencyUs = latencyUs;
+            mResult = result;
+        }
+
+        @Override
+        public String toString() {
+            String result = mResult == RESULT_EXCEPTION ? "exception"
+                    : mResult == RESULT_NO_HAL ? "no hal" : String.valueOf(mResult);
+            return DEBUG_DATE_FORMAT.format(new Date(mTimeMs)) + " " + OP_NAMES[mOp]
+                    + " uid:" + (mUid == Process.INVALID_UID ? "-" : String.valueOf(mUid))
+                    + " payload:" + mPayloadSize + " latency:" + mLatencyUs + "us"
+                    + " result:" + result;
+        }
+    }
+}
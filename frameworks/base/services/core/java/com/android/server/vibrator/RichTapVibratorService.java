@@ -2,8 +2,11 @@ package com.android.server.vibrator;
 
 import android.content.Context;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.os.IBinder;
 import android.os.ServiceManager;
@@ -12,19 +15,31 @@ import android.os.CombinedVibration;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
 import android.os.HapticPlayer;
+import android.util.LruCache;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.hardware.vibrator.IVibrator;
 import android.os.NativeHandle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.proto.ProtoOutputStream;
 
 import vendor.aac.hardware.richtap.vibrator.IRichtapVibrator;//aidl
 import vendor.aac.hardware.richtap.vibrator.IRichtapCallback;
 //import android.hardware.vibrator.IVibratorCallback;
+import android.os.RichTapCapabilities;
 import android.os.RichTapVibrationEffect;
+import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.hardware.vibrator.V1_0.EffectStrength;
 
+import com.android.internal.os.BackgroundThread;
+
 
 public class RichTapVibratorService {
     private static final String TAG = "RichTapVibratorService";
@@ -32,13 +47,88 @@ public class RichTapVibratorService {
 
     private boolean mSupportRichTap = false;
     private IRichtapCallback mCallback;
+    // completion of the pattern currently played, finished as stopped by the next stop
+    private CompletionCallback mActiveCompletion;
     private volatile IRichtapVibrator sRichtapVibratorService = null;
+    // set by the first getRichtapService(), the only one allowed to connect inline
+    private final AtomicBoolean mConnectAttempted = new AtomicBoolean();
+    private final AtomicBoolean mReconnectPending = new AtomicBoolean();
+    private volatile long mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+    // true while connectHal() runs, waited for with mConnectLock by awaitConnection()
+    private volatile boolean mConnecting;
+    private final Object mConnectLock = new Object();
+    private final RichTapLatencyStats mLatencyStats = new RichTapLatencyStats();
+    private final RichTapMetrics mMetrics = new RichTapMetrics();
+    // every HAL call goes through this thread, in order
+    private final RichTapHalDispatcher mDispatcher =
+            new RichTapHalDispatcher(this::getRichtapService, mMetrics);
+    private final RichTapHeStreams mHeStreams = new RichTapHeStreams();
+    // kept by mCallStateCallback, true while ringing or offhook
+    private volatile boolean mInCall;
+    // a looping HE pattern was the last effect started, until the next stop
+    private volatile boolean mLoopPlaying;
+    private final CallStateCallback mCallStateCallback = new CallStateCallback();
+    // last amplitude and vibration mode sent, whoever sent them
+    private volatile int mAmplitude = -1;
+    private volatile int mMode = -1;
+    // amplitude published by richTapVibratorStreamAmplitude, not sent to the HAL yet
+    private final AtomicInteger mStreamedAmplitude = new AtomicInteger(NO_AMPLITUDE);
+    private final AtomicBoolean mAmplitudeFlushPending = new AtomicBoolean();
+    private volatile long mLastAmplitudeFlushMs;
+    // bumped by cancelStreamedAmplitude, a flush read under an older epoch is dropped
+    private final AtomicInteger mAmplitudeEpoch = new AtomicInteger();
+    private final Runnable mFlushStreamedAmplitude = this::flushStreamedAmplitude;
+    // seq of the HE 2.0 wrappers sent for composed waveforms, under the pid of this process
+    private final AtomicInteger mComposedSeq = new AtomicInteger();
     private VibHalDeathRecipient mHalDeathLinker = null;
 
     private final int SDK_HAL_NEW_FORMAT_DATA_VERSION = 0x02;
-    static SenderId mCurrentSenderId = new SenderId(0, 0);
+    // index of the sender pid/seq in an HE 2.0 wrapper
+    private static final int HE2_0_WRAPPER_PID_INDEX = 2;
+    private static final int HE2_0_WRAPPER_SEQ_INDEX = 3;
+    // backoff of the hal reconnection, doubled on every failed attempt
+    private static final long RECONNECT_MIN_DELAY_MS = 100;
+    private static final long RECONNECT_MAX_DELAY_MS = 10_000;
+    // longest wait of a HAL call for the connection in progress, before being dropped
+    private static final long CONNECT_WAIT_MS = 500;
+    // streamed amplitudes are sent to the HAL at most once per period
+    private static final long AMPLITUDE_STREAM_PERIOD_MS = 10;
+    private static final int NO_AMPLITUDE = -1;
+    // epoch of an amplitude that is not streamed, never dropped
+    private static final int ANY_EPOCH = -1;
+    // byte budget of the prepared HE data of one app, an app going over it evicts its own data
+    private static final int PREPARED_HE_MAX_BYTES_PER_UID = 256 * 1024;
+
+    // prepared HE data by uid, guarded by itself
+    private final SparseArray<PreparedHeCache> mPreparedHe = new SparseArray<>();
     public static final String ACTION_CHANGE_MODE = "richtap_change_mode";
 
+    /** Consumed by disposeRichtapEffectParams, no vibration is created for it. */
+    static final int FLAG_PARAMETER = 1;
+    /** Played by startVibrationLocked through this service, no fallback is needed. */
+    static final int FLAG_PLAYBACK = 1 << 1;
+    /** Doesn't stop the RichTap effect playing, unless it comes from a HapticPlayer. */
+    static final int FLAG_KEEPS_PLAYING = 1 << 2;
+    // FLAG_* bits of each RichTap kind, indexed by kind - KIND_FIRST
+    private static final int[] KIND_FLAGS =
+            new int[RichTapVibrationEffect.KIND_LAST - RichTapVibrationEffect.KIND_FIRST + 1];
+
+    static {
+        setKindFlags(RichTapVibrationEffect.KIND_EXT_PREBAKED, FLAG_PLAYBACK | FLAG_KEEPS_PLAYING);
+        setKindFlags(RichTapVibrationEffect.KIND_ENVELOPE, FLAG_PLAYBACK | FLAG_KEEPS_PLAYING);
+        setKindFlags(RichTapVibrationEffect.KIND_PATTERN_HE, FLAG_PLAYBACK | FLAG_KEEPS_PLAYING);
+        setKindFlags(RichTapVibrationEffect.KIND_TRIGGER_HE, FLAG_PLAYBACK | FLAG_KEEPS_PLAYING);
+        setKindFlags(RichTapVibrationEffect.KIND_PATTERN_HE_PARAMETER,
+                FLAG_PARAMETER | FLAG_KEEPS_PLAYING);
+        setKindFlags(RichTapVibrationEffect.KIND_HAPTIC_PARAMETER,
+                FLAG_PARAMETER | FLAG_KEEPS_PLAYING);
+        setKindFlags(RichTapVibrationEffect.KIND_PREPARED_HE, FLAG_PARAMETER | FLAG_KEEPS_PLAYING);
+    }
+
+    private static void setKindFlags(int kind, int flags) {
+        KIND_FLAGS[kind - RichTapVibrationEffect.KIND_FIRST] = flags;
+    }
+
     public enum HapticParamType {
         HAPTIC_DRC(0x01);
 
@@ -53,47 +143,148 @@ public class RichTapVibratorService {
         private int type;
     }
 
+    /*
+     * return the HAL proxy, a volatile read once connected. The first call connects inline, later
+     * connections are made by reconnectHal() on the background thread. A call arriving while the
+     * first connection after boot or a HAL death is made, or scheduled, waits for it rather than
+     * dropping its command, see awaitConnection().
+     */
     private IRichtapVibrator getRichtapService() {
-        synchronized (RichTapVibratorService.class) {
-            if (sRichtapVibratorService == null) {
-                String vibratorDescriptor = "android$hardware$vibrator$IVibrator".replace('$', '.') + "/default";
-                Slog.d(TAG, "vibratorDescriptor:" + vibratorDescriptor);
-                IVibrator vibratorHalService = IVibrator.Stub.asInterface(ServiceManager.getService(vibratorDescriptor));
-                if (vibratorHalService == null) {
-                    Slog.d(TAG, "can not get hal service");
-                    return null;
-                }
-                Slog.d(TAG, "vibratorHalService:" + vibratorHalService);
-                try {
-                    Slog.d(TAG, "Capabilities:" + vibratorHalService.getCapabilities());
-                } catch (Exception e) {
-                    Slog.d(TAG, "getCapabilities faile", e);
+        IRichtapVibrator service = sRichtapVibratorService;
+        if (service != null) {
+            return service;
+        }
+        if (mConnectAttempted.compareAndSet(false, true)) {
+            mConnecting = true;
+            try {
+                service = connectHal();
+                if (service == null) {
+                    scheduleReconnect();
                 }
+            } finally {
+                onConnectDone();
+            }
+            return service;
+        }
+        return awaitConnection();
+    }
 
-                IBinder binder = null;
+    /*
+     * wait, at most CONNECT_WAIT_MS, for the connection in progress or pending. Only the first
+     * retry is waited for: once it failed the HAL is not coming back soon, and the backoff delay
+     * would hold the dispatcher thread for nothing.
+     */
+    private IRichtapVibrator awaitConnection() {
+        long deadline = SystemClock.uptimeMillis() + CONNECT_WAIT_MS;
+        synchronized (mConnectLock) {
+            while (sRichtapVibratorService == null
+                    && (mConnecting || mReconnectPending.get())
+                    && mReconnectDelayMs == RECONNECT_MIN_DELAY_MS) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
                 try {
-                    binder = vibratorHalService.asBinder().getExtension();
-                    if (binder != null) {
-                        sRichtapVibratorService = IRichtapVibrator.Stub.asInterface(Binder.allowBlocking(binder));
-                        mHalDeathLinker = new VibHalDeathRecipient(this);
-                        mCurrentSenderId.reset();
-                        binder.linkToDeath(mHalDeathLinker, 0);
-                    } else {
-                        sRichtapVibratorService = null;
-                        Slog.e(TAG, "getExtension == null");
-                    }
-                } catch (Exception e) {
-                    binder = null;
-                    Slog.e(TAG, "getExtension fail", e);
+                    mConnectLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
         }
         return sRichtapVibratorService;
     }
 
+    private void onConnectDone() {
+        synchronized (mConnectLock) {
+            mConnecting = false;
+            mConnectLock.notifyAll();
+        }
+    }
+
+    private IRichtapVibrator connectHal() {
+        String vibratorDescriptor = "android$hardware$vibrator$IVibrator".replace('$', '.') + "/default";
+        IVibrator vibratorHalService = IVibrator.Stub.asInterface(ServiceManager.getService(vibratorDescriptor));
+        if (vibratorHalService == null) {
+            Slog.d(TAG, "can not get hal service " + vibratorDescriptor);
+            return null;
+        }
+        try {
+            IBinder binder = vibratorHalService.asBinder().getExtension();
+            if (binder == null) {
+                Slog.e(TAG, "getExtension == null");
+                return null;
+            }
+            IRichtapVibrator service = IRichtapVibrator.Stub.asInterface(Binder.allowBlocking(binder));
+            mHalDeathLinker = new VibHalDeathRecipient(this);
+            binder.linkToDeath(mHalDeathLinker, 0);
+            mHeStreams.reset();
+            sRichtapVibratorService = service;
+            Slog.d(TAG, "richtap hal connected:" + service);
+            return service;
+        } catch (Exception e) {
+            Slog.e(TAG, "getExtension fail", e);
+            return null;
+        }
+    }
+
+    /* connect again after mReconnectDelayMs, unless a reconnection is already pending. */
+    private void scheduleReconnect() {
+        if (mReconnectPending.compareAndSet(false, true)) {
+            BackgroundThread.getHandler().postDelayed(this::reconnectHal, mReconnectDelayMs);
+        }
+    }
+
+    private void reconnectHal() {
+        // set before clearing the pending flag, awaitConnection() sees one or the other
+        mConnecting = true;
+        mReconnectPending.set(false);
+        try {
+            connectAgain();
+        } finally {
+            onConnectDone();
+        }
+    }
+
+    private void connectAgain() {
+        if (sRichtapVibratorService != null) {
+            return;
+        }
+        if (connectHal() != null) {
+            mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+            // a restarted HAL is back to its default mode
+            int mode = mMode;
+            if (mode != -1) {
+                int[] param = new int[]{HapticParamType.HAPTIC_DRC.getValue(), mode};
+                setHapticParam(param, param.length, Process.INVALID_UID);
+            }
+        } else {
+            mReconnectDelayMs = Math.min(mReconnectDelayMs * 2, RECONNECT_MAX_DELAY_MS);
+            Slog.w(TAG, "richtap hal reconnect failed, retry in " + mReconnectDelayMs + "ms");
+            scheduleReconnect();
+        }
+    }
+
+    /*
+     * one instance per vibrator manager, shared by its vibrator controllers: one HAL proxy, one
+     * callback and one ordered queue of HAL calls for all of them.
+     */
     RichTapVibratorService(boolean supportRichTap, IRichtapCallback callback) {
-        this.mSupportRichTap = supportRichTap;
-        this.mCallback = callback;
+        this.mSupportRichTap = supportRichTap && RichTapCapabilities.get().isAvailable();
+        this.mCallback = new MetricsCallback(callback, mMetrics);
+    }
+
+    /*
+     * start following the call state, once the telephony service can be reached. a call ringing
+     * or answered stops the richtap effect loop playing, if any.
+     */
+    public void onSystemReady(Context context) {
+        TelephonyManager telephonyManager = context.getSystemService(TelephonyManager.class);
+        if (telephonyManager == null) {
+            Slog.w(TAG, "no telephony, call state not followed");
+            return;
+        }
+        telephonyManager.registerTelephonyCallback(BackgroundThread.getExecutor(),
+                mCallStateCallback);
     }
 
     /*
@@ -101,12 +292,8 @@ public class RichTapVibratorService {
      * return false if call state is not in offhook or ringing
      * return true if not idle, and must stop richtap effect loop.
      */
-    public boolean disposeTelephonyCallState(Context context) {
-        boolean calling = false;
-        TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
-        if (TelephonyManager.CALL_STATE_OFFHOOK == telephonyManager.getCallState() || TelephonyManager.CALL_STATE_RINGING == telephonyManager.getCallState()) {
-            calling = true;
-        }
+    public boolean disposeTelephonyCallState() {
+        boolean calling = mInCall;
         if (calling) {
             Slog.i(TAG, "current is calling state, stop richtap effect loop");
             richTapVibratorStop();
@@ -114,12 +301,28 @@ public class RichTapVibratorService {
         return calling;
     }
 
-    public boolean disposeRichtapEffectParams(CombinedVibration combEffect) {
-        if (!(combEffect instanceof CombinedVibration.Mono)) {
+    /* return what the vibrator manager does with effects of the RichTap kind, FLAG_* bits. */
+    static int getKindFlags(int kind) {
+        if (kind < RichTapVibrationEffect.KIND_FIRST || kind > RichTapVibrationEffect.KIND_LAST) {
+            return 0;
+        }
+        return KIND_FLAGS[kind - RichTapVibrationEffect.KIND_FIRST];
+    }
+
+    /*
+     * consume the parameter effects, kind is RichTapVibrationEffect.getKind(combEffect).
+     * return true if combEffect was one, no vibration must be created for it then.
+     */
+    public boolean disposeRichtapEffectParams(int uid, IBinder token, CombinedVibration combEffect,
+            int kind) {
+        if ((getKindFlags(kind) & FLAG_PARAMETER) == 0) {
             return false;
         }
         VibrationEffect effect = ((CombinedVibration.Mono) combEffect).getEffect();
-        if (effect instanceof RichTapVibrationEffect.PatternHeParameter) {
+        if (kind == RichTapVibrationEffect.KIND_PREPARED_HE) {
+            disposePreparedHe(uid, token, (RichTapVibrationEffect.PreparedHe) effect);
+            return true;
+        } else if (kind == RichTapVibrationEffect.KIND_PATTERN_HE_PARAMETER) {
             RichTapVibrationEffect.PatternHeParameter param = (RichTapVibrationEffect.PatternHeParameter) effect;
             int interval = param.getInterval();
             int amplitude = param.getAmplitude();
@@ -127,72 +330,101 @@ public class RichTapVibratorService {
             if (DEBUG) {
                 Slog.d(TAG, "recive data " + " interval:" + interval + " amplitude:" + amplitude + " freq:" + freq);
             }
-            try {
-                IRichtapVibrator service = getRichtapService();
-                if (null != service) {
-                    if (DEBUG) {
-                        Slog.d(TAG, "aac richtap performHeParam");
-                    }
-                    service.performHeParam(interval, amplitude, freq, mCallback);
-                }
-            } catch (Exception e) {
-                Slog.e(TAG, "aac richtap performHeParam fail.", e);
+            HeParamCommand command = new HeParamCommand(uid, interval, amplitude, freq);
+            if (command.isStop()) {
+                // HapticPlayer.stop(), ends what plays like richTapVibratorStop() does
+                releasePlayback();
             }
+            mDispatcher.enqueue(command);
             return true;
-        } else if (effect instanceof RichTapVibrationEffect.HapticParameter) {
+        } else if (kind == RichTapVibrationEffect.KIND_HAPTIC_PARAMETER) {
             RichTapVibrationEffect.HapticParameter parameter = (RichTapVibrationEffect.HapticParameter) effect;
             int[] param = parameter.getParam();
             int length = parameter.getLength();
             if(DEBUG) {
                 Slog.d(TAG, "receive HapticParameter:" +  parameter.toString());
             }
-            setHapticParam(param, length);
+            setHapticParam(param, length, uid);
             return true;
         }
-        Slog.d(TAG, "none richtap effect, do nothing!!");
         return false;
     }
 
+    /*
+     * stamp the time the vibrator manager received a pattern, the pattern gets its stage
+     * timestamps here if its sender did not take any.
+     */
+    public void markServiceEntry(CombinedVibration combEffect, int kind, long nowNanos) {
+        if (kind == RichTapVibrationEffect.KIND_PATTERN_HE) {
+            RichTapVibrationEffect.PatternHe patternHe = (RichTapVibrationEffect.PatternHe)
+                    ((CombinedVibration.Mono) combEffect).getEffect();
+            long[] timestamps = patternHe.getTimestamps();
+            if (timestamps == null || timestamps.length != RichTapVibrationEffect.TS_COUNT) {
+                timestamps = new long[RichTapVibrationEffect.TS_COUNT];
+                patternHe.setTimestamps(timestamps);
+            }
+            timestamps[RichTapVibrationEffect.TS_SERVICE_ENTRY] = nowNanos;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  RichTap: amplitude=" + mAmplitude + " mode=" + mMode
+                + " inCall=" + mInCall + " loopPlaying=" + mLoopPlaying);
+        mDispatcher.dump(pw);
+        mMetrics.dump(pw);
+        mHeStreams.dump(pw);
+        mLatencyStats.dump(pw);
+    }
+
+    /* write the RichTap metrics as a field of the vibrator manager dump. */
+    public void dumpProto(ProtoOutputStream proto) {
+        mMetrics.dumpProto(proto);
+    }
+
     public void richTapVibratorOn(long millis) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
+        cancelStreamedAmplitude();
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_PLAY, /* startsEffect= */ true,
+                RichTapMetrics.OP_ON, Process.INVALID_UID, /* payloadSize= */ 1) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
                 if (DEBUG) {
                     Slog.d(TAG, "aac richtap doVibratorOn");
                 }
-                service.on((int) millis, mCallback);
+                hal.on((int) millis, mCallback);
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOn fail.", e);
-        }
+        });
     }
 
     public void richTapVibratorOff() {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
+        cancelStreamedAmplitude();
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_STOP, RichTapMetrics.OP_OFF) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
                 if (DEBUG) {
                     Slog.d(TAG, "aac richtap doVibratorOff");
                 }
-                service.off(mCallback);
+                hal.off(mCallback);
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOff fail.", e);
-        }
+        });
     }
 
-    private void setHapticParam(int[] data, int length) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
+    private void setHapticParam(int[] data, int length, int uid) {
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_CONFIG, /* startsEffect= */ false,
+                RichTapMetrics.OP_SET_HAPTIC_PARAM, uid, length) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
                 if (DEBUG) {
                     Slog.d(TAG, "aac richtap setHapticParam, data length:" + length);
                 }
-                service.setHapticParam(data, length, mCallback);
+                hal.setHapticParam(data, length, mCallback);
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap setHapticParam fail.", e);
-        }
+        });
     }
 
     public void richTapSetVibrationMode(int mode) {
@@ -201,44 +433,116 @@ public class RichTapVibratorService {
         }
         //stop all vibrations first
         richTapVibratorStop();
+        mMode = mode;
         int[] param = new int[]{
                 HapticParamType.HAPTIC_DRC.getValue(),
                 mode
         };
-        setHapticParam(param, param.length);
+        setHapticParam(param, param.length, Process.INVALID_UID);
     }
 
     public void richTapVibratorSetAmplitude(int amplitude) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
+        cancelStreamedAmplitude();
+        enqueueAmplitude(amplitude);
+    }
+
+    /*
+     * publish the target amplitude of a waveform step. it is sent to the HAL at once if nothing
+     * was sent for AMPLITUDE_STREAM_PERIOD_MS, otherwise at the end of the period, and only the
+     * last amplitude published by then is sent: a dense waveform costs no more HAL calls than
+     * a coarse one. anything else played or stopped drops the amplitude not sent yet.
+     */
+    public void richTapVibratorStreamAmplitude(int amplitude) {
+        mStreamedAmplitude.set(amplitude);
+        if (mAmplitudeFlushPending.compareAndSet(false, true)) {
+            long delayMs = mLastAmplitudeFlushMs + AMPLITUDE_STREAM_PERIOD_MS
+                    - SystemClock.uptimeMillis();
+            if (delayMs <= 0) {
+                flushStreamedAmplitude();
+            } else {
+                BackgroundThread.getHandler().postDelayed(mFlushStreamedAmplitude, delayMs);
+            }
+        }
+    }
+
+    private void flushStreamedAmplitude() {
+        // read before the amplitude, a cancel racing this flush then always drops it
+        int epoch = mAmplitudeEpoch.get();
+        // cleared first, so an amplitude published after the read below schedules a new flush
+        mAmplitudeFlushPending.set(false);
+        int amplitude = mStreamedAmplitude.getAndSet(NO_AMPLITUDE);
+        if (amplitude != NO_AMPLITUDE && epoch == mAmplitudeEpoch.get()) {
+            mLastAmplitudeFlushMs = SystemClock.uptimeMillis();
+            enqueueAmplitude(amplitude, epoch);
+        }
+    }
+
+    /*
+     * the streamed amplitude belongs to the effect replaced, the next one is sent at once. called
+     * before the new effect is queued, so a flush still running is dropped once it reaches the
+     * dispatcher after that effect.
+     */
+    private void cancelStreamedAmplitude() {
+        mAmplitudeEpoch.updateAndGet(epoch -> (epoch + 1) & Integer.MAX_VALUE);
+        mStreamedAmplitude.set(NO_AMPLITUDE);
+        if (mAmplitudeFlushPending.get()) {
+            BackgroundThread.getHandler().removeCallbacks(mFlushStreamedAmplitude);
+            mAmplitudeFlushPending.set(false);
+        }
+        mLastAmplitudeFlushMs = 0;
+    }
+
+    private void enqueueAmplitude(int amplitude) {
+        enqueueAmplitude(amplitude, ANY_EPOCH);
+    }
+
+    /* a streamed amplitude of an older epoch neither replaces a pending one nor is sent. */
+    private void enqueueAmplitude(int amplitude, int epoch) {
+        mAmplitude = amplitude;
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_AMPLITUDE, RichTapMetrics.OP_SET_AMPLITUDE) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
+                if (!isCurrent()) {
+                    Slog.d(TAG, "aac richtap drop streamed amplitude of a replaced effect");
+                    return 0;
+                }
                 if (DEBUG) {
                     Slog.d(TAG, "aac richtap doVibratorSetAmplitude");
                 }
-                service.setAmplitude((int) (amplitude), mCallback);
+                hal.setAmplitude((int) (amplitude), mCallback);
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorSetAmplitude fail.", e);
-        }
+
+            @Override
+            boolean mergeFrom(RichTapHalDispatcher.Command last) {
+                return isCurrent();
+            }
+
+            private boolean isCurrent() {
+                return epoch == ANY_EPOCH || epoch == mAmplitudeEpoch.get();
+            }
+        });
     }
 
-    public int richTapVibratorPerform(int id, byte scale) {
-        int timeout = 0;
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
+    public void richTapVibratorPerform(int id, byte scale) {
+        cancelStreamedAmplitude();
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_PLAY, /* startsEffect= */ true,
+                RichTapMetrics.OP_PERFORM, Process.INVALID_UID, /* payloadSize= */ 2) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
                 if (DEBUG) {
                     Slog.d(TAG, "perform richtap vibrator");
                 }
-                timeout = service.perform(id, scale, mCallback);
+                long start = System.nanoTime();
+                int timeout = hal.perform(id, scale, mCallback);
+                mLatencyStats.recordStage(RichTapLatencyStats.TYPE_PREBAKED,
+                        RichTapLatencyStats.STAGE_HAL, System.nanoTime() - start);
                 Slog.d(TAG, "aac richtap perform timeout:" + timeout);
                 return timeout;
-
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap perform fail.", e);
-        }
-        return timeout;
+        });
     }
 
     public int getRichTapPrebakStrength(int effectStrength) {
@@ -263,7 +567,7 @@ public class RichTapVibratorService {
         return strength;
     }
 
-    public void richTapVibratorOnEnvelope(int[] relativeTime, int[] scaleArr, int[] freqArr, boolean steepMode, int amplitude) {
+    public void richTapVibratorOnEnvelope(int[] relativeTime, int[] scaleArr, int[] freqArr, boolean steepMode, int amplitude, int uid) {
         int[] params = new int[12];
         for (int i = 0; i < relativeTime.length; i++) {
             params[i * 3] = relativeTime[i];
@@ -278,84 +582,348 @@ public class RichTapVibratorService {
             Slog.d(TAG, "vibrator perform envelope");
         }
         richTapVibratorSetAmplitude(amplitude);
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_PLAY, /* startsEffect= */ true,
+                RichTapMetrics.OP_PERFORM_ENVELOPE, uid, params.length) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
                 if (DEBUG) {
                     Slog.d(TAG, "aac richtap performEnvelope");
                 }
-                service.performEnvelope(params, steepMode, mCallback);
+                long start = System.nanoTime();
+                hal.performEnvelope(params, steepMode, mCallback);
+                mLatencyStats.recordStage(RichTapLatencyStats.TYPE_ENVELOPE,
+                        RichTapLatencyStats.STAGE_HAL, System.nanoTime() - start);
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap performEnvelope fail.", e);
-        }
+        });
     }
 
-    public void richTapVibratorOnPatternHe(VibrationEffect effect) {
+    public void richTapVibratorOnPatternHe(VibrationEffect effect, int uid) {
+        cancelStreamedAmplitude();
         RichTapVibrationEffect.PatternHe newEffect = (RichTapVibrationEffect.PatternHe) effect;
+        long[] stamps = newEffect.getTimestamps();
+        final long[] timestamps = stamps != null
+                && stamps.length == RichTapVibrationEffect.TS_COUNT ? stamps : null;
 
-        int[] pattern = newEffect.getPatternInfo();
-        int looper = newEffect.getLooper();
-        int interval = newEffect.getInterval();
-        int amplitude = newEffect.getAmplitude();
-        int freq = newEffect.getFreq();
+        final int[] pattern = newEffect.getPatternInfo();
+        final int looper = newEffect.getLooper();
+        final int interval = newEffect.getInterval();
+        final int amplitude = newEffect.getAmplitude();
+        final int freq = newEffect.getFreq();
 
-        long patternId = -1;
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
-                service.performHe(looper, interval, amplitude, freq, pattern, mCallback);
+        final int heVersion = pattern != null && pattern.length > 1
+                && pattern[0] == SDK_HAL_NEW_FORMAT_DATA_VERSION ? pattern[1] : 1;
+        if (!RichTapCapabilities.get().supportsHeVersion(heVersion)) {
+            Slog.w(TAG, "he version:" + heVersion + " not supported by "
+                    + RichTapCapabilities.get());
+            return;
+        }
+
+        final CompletionCallback completion = newEffect.getCompletion() != null
+                ? new CompletionCallback(newEffect.getCompletion(), mCallback) : null;
+        if (completion != null) {
+            mActiveCompletion = completion;
+        }
+        // an HE 1.0 pattern or the first HE 2.0 wrapper replaces what the HAL plays
+        boolean startsEffect = heVersion != 2 || checkIfFirstHe2_0Package(newEffect);
+        if (startsEffect) {
+            mLoopPlaying = looper > 1;
+        }
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_PLAY, startsEffect, RichTapMetrics.OP_PERFORM_HE, uid,
+                pattern == null ? 0 : pattern.length) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
+                if (timestamps != null) {
+                    timestamps[RichTapVibrationEffect.TS_DISPATCH] = System.nanoTime();
+                }
+                IRichtapCallback callback = completion != null ? completion : mCallback;
+                hal.performHe(looper, interval, amplitude, freq, pattern, callback);
+                if (timestamps != null) {
+                    timestamps[RichTapVibrationEffect.TS_HAL_DONE] = System.nanoTime();
+                    mLatencyStats.record(heVersion == 2 ? RichTapLatencyStats.TYPE_HE2
+                            : RichTapLatencyStats.TYPE_HE1, timestamps);
+                }
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOnPatternHe fail.", e);
+
+            @Override
+            void onFailed() {
+                if (completion != null) {
+                    completion.finish(-1, /* stopped= */ true);
+                }
+            }
+        });
+    }
+
+    /*
+     * translate a composed waveform of steps and ramps to HE 2.0 wrappers, see
+     * RichTapComposedTranslator. return null if it can't be translated exactly, it must then be
+     * played step by step.
+     */
+    public int[][] translateComposed(VibrationEffect.Composed composed) {
+        if (!RichTapCapabilities.get().supportsHeVersion(2)) {
+            return null;
         }
+        return RichTapComposedTranslator.translate(composed, Process.myPid(),
+                mComposedSeq.incrementAndGet());
     }
 
-    public void richTapVibratorOnRawPattern(int[] pattern, int amplitude, int freq) {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
-                service.performHe(1, 0, amplitude, freq, pattern, mCallback);
+    /*
+     * play the wrappers translateComposed() returned for composed, as one HE 2.0 effect.
+     * completion is sent once the HAL reports the end of the effect, or as stopped when it is
+     * stopped or could not be played.
+     */
+    public void richTapVibratorOnComposed(VibrationEffect.Composed composed, int[][] wrappers,
+            int uid, ResultReceiver completion) {
+        cancelStreamedAmplitude();
+        // a repeat from the first segment is a loop of the whole effect, its trailing silence
+        // included as the loop interval
+        final int looper = composed.getRepeatIndex() == 0 ? Integer.MAX_VALUE : 1;
+        final int interval = looper > 1 ? RichTapComposedTranslator.getLoopInterval(composed) : 0;
+        mLoopPlaying = looper > 1;
+        final CompletionCallback callback = new CompletionCallback(completion, mCallback);
+        mActiveCompletion = callback;
+        int payloadSize = 0;
+        for (int[] wrapper : wrappers) {
+            payloadSize += wrapper.length;
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "play composed as he, wrappers:" + wrappers.length
+                    + " ints:" + payloadSize + " looper:" + looper + " interval:" + interval);
+        }
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_PLAY, /* startsEffect= */ true,
+                RichTapMetrics.OP_PERFORM_HE, uid, payloadSize) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
+                for (int i = 0; i < wrappers.length; i++) {
+                    // the effect ends with its last wrapper
+                    hal.performHe(looper, interval, VibrationEffect.MAX_AMPLITUDE, 0, wrappers[i],
+                            i == wrappers.length - 1 ? callback : mCallback);
+                }
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorOnPatternHe fail.", e);
+
+            @Override
+            void onFailed() {
+                callback.finish(-1, /* stopped= */ true);
+            }
+        });
+    }
+
+    /*
+     * register or release HE data prepared by an app, the HAL interface is frozen so the data is
+     * kept here and sent to performHe on every trigger. It is dropped when the process whose
+     * vibrator token sent it dies, or when its uid is removed.
+     */
+    private void disposePreparedHe(int uid, IBinder token,
+            RichTapVibrationEffect.PreparedHe prepared) {
+        PreparedHeKey key = new PreparedHeKey(uid, prepared.getPid(), prepared.getHandle());
+        int bytes;
+        synchronized (mPreparedHe) {
+            PreparedHeCache cache = mPreparedHe.get(uid);
+            if (prepared.isRelease()) {
+                if (cache == null) {
+                    return;
+                }
+                cache.remove(key);
+                removePreparedHeIfEmptyLocked(cache);
+            } else {
+                if (cache == null) {
+                    cache = new PreparedHeCache(uid);
+                    mPreparedHe.put(uid, cache);
+                }
+                if (!cache.linkToDeath(prepared.getPid(), token)) {
+                    // the sender is already gone
+                    removePreparedHeIfEmptyLocked(cache);
+                    return;
+                }
+                cache.put(key, prepared);
+                // data larger than the whole budget is evicted at once
+                removePreparedHeIfEmptyLocked(cache);
+            }
+            bytes = cache.size();
+        }
+        if (DEBUG) {
+            Slog.d(TAG, (prepared.isRelease() ? "release " : "prepare ") + prepared
+                    + " uid:" + uid + " prepared bytes:" + bytes);
         }
     }
 
-    public void richTapVibratorStop() {
-        try {
-            IRichtapVibrator service = getRichtapService();
-            if (null != service) {
-                if (DEBUG) {
-                    Slog.d(TAG, "aac richtap doVibratorStop");
+    private RichTapVibrationEffect.PreparedHe getPreparedHe(int uid, int pid, int handle) {
+        synchronized (mPreparedHe) {
+            PreparedHeCache cache = mPreparedHe.get(uid);
+            return cache == null ? null : cache.get(new PreparedHeKey(uid, pid, handle));
+        }
+    }
+
+    /* drop the HE data prepared by a uid being removed. */
+    public void onUidRemoved(int uid) {
+        synchronized (mPreparedHe) {
+            PreparedHeCache cache = mPreparedHe.get(uid);
+            if (cache != null) {
+                cache.evictAll();
+                removePreparedHeIfEmptyLocked(cache);
+            }
+        }
+    }
+
+    private void onPreparedHeSenderDied(int uid, int pid) {
+        synchronized (mPreparedHe) {
+            PreparedHeCache cache = mPreparedHe.get(uid);
+            if (cache == null) {
+                return;
+            }
+            cache.removePid(pid);
+            removePreparedHeIfEmptyLocked(cache);
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "prepared he sender died, uid:" + uid + " pid:" + pid);
+        }
+    }
+
+    private void removePreparedHeIfEmptyLocked(PreparedHeCache cache) {
+        if (cache.size() == 0) {
+            cache.unlinkAll();
+            mPreparedHe.remove(cache.mUid);
+        }
+    }
+
+    /*
+     * play HE data prepared by the app uid, all the HE 2.0 wrappers of one trigger carry the
+     * sender pid/seq of the trigger.
+     * return false if nothing is prepared under that handle.
+     */
+    public boolean richTapVibratorOnTriggerHe(int uid, RichTapVibrationEffect.TriggerHe trigger) {
+        cancelStreamedAmplitude();
+        final RichTapVibrationEffect.PreparedHe prepared = getPreparedHe(uid, trigger.getPid(),
+                trigger.getHandle());
+        if (prepared == null) {
+            Slog.w(TAG, "no prepared he for " + trigger + " uid:" + uid);
+            return false;
+        }
+        final int heVersion = prepared.getHeVersion();
+        if (!RichTapCapabilities.get().supportsHeVersion(heVersion)) {
+            Slog.w(TAG, "he version:" + heVersion + " not supported by "
+                    + RichTapCapabilities.get());
+            return false;
+        }
+        int payloadSize = 0;
+        for (int[] block : prepared.getBlocks()) {
+            payloadSize += block.length;
+        }
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_PLAY, /* startsEffect= */ true,
+                RichTapMetrics.OP_PERFORM_HE, uid, payloadSize) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
+                long start = System.nanoTime();
+                for (int[] block : prepared.getBlocks()) {
+                    int[] pattern = block;
+                    if (heVersion == 2) {
+                        pattern = block.clone();
+                        pattern[HE2_0_WRAPPER_PID_INDEX] = trigger.getPid();
+                        pattern[HE2_0_WRAPPER_SEQ_INDEX] = trigger.getSeq();
+                    }
+                    hal.performHe(trigger.getLooper(), trigger.getInterval(),
+                            trigger.getAmplitude(), trigger.getFreq(), pattern, mCallback);
                 }
+                mLatencyStats.recordStage(RichTapLatencyStats.TYPE_TRIGGER,
+                        RichTapLatencyStats.STAGE_HAL, System.nanoTime() - start);
+                return 0;
+            }
+        });
+        return true;
+    }
+
+    /*
+     * report a pattern the vibrator manager did not play (ignored by settings, app ops...) as
+     * stopped to its client, if it asked for its completion.
+     */
+    public void disposeIgnoredEffect(CombinedVibration combEffect) {
+        if (RichTapVibrationEffect.getKind(combEffect) == RichTapVibrationEffect.KIND_PATTERN_HE) {
+            VibrationEffect effect = ((CombinedVibration.Mono) combEffect).getEffect();
+            ResultReceiver completion = ((RichTapVibrationEffect.PatternHe) effect).getCompletion();
+            if (completion != null) {
+                new CompletionCallback(completion, null).finish(0, /* stopped= */ true);
+            }
+        }
+    }
+
+    public void richTapVibratorOnRawPattern(int[] pattern, int amplitude, int freq) {
+        cancelStreamedAmplitude();
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_PLAY, /* startsEffect= */ true,
+                RichTapMetrics.OP_PERFORM_HE, Process.INVALID_UID, pattern.length) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
+                hal.performHe(1, 0, amplitude, freq, pattern, mCallback);
+                return 0;
+            }
+        });
+    }
+
+    public void richTapVibratorStop() {
+        releasePlayback();
+        mDispatcher.enqueue(new RichTapHalDispatcher.Command(
+                RichTapHalDispatcher.KIND_STOP, RichTapMetrics.OP_STOP) {
+            @Override
+            int call(IRichtapVibrator hal) throws RemoteException {
                 if (DEBUG) {
                     Slog.d(TAG, "richtap service stop!!");
                 }
-                service.stop(mCallback);
+                hal.stop(mCallback);
+                return 0;
             }
-        } catch (Exception e) {
-            Slog.e(TAG, "aac richtap doVibratorStop fail.", e);
+        });
+    }
+
+    /*
+     * forget what plays, before the HAL is told to stop it: the HE stream owning the actuator is
+     * released and the completion of the pattern playing is finished as stopped.
+     */
+    private synchronized void releasePlayback() {
+        cancelStreamedAmplitude();
+        mLoopPlaying = false;
+        mHeStreams.releaseOwner();
+        if (mActiveCompletion != null) {
+            mActiveCompletion.finish(0, /* stopped= */ true);
+            mActiveCompletion = null;
         }
     }
 
-    public boolean checkIfRichTapEffect(VibrationEffect effect, String reason) {
+    /* return whether an effect of the RichTap kind plays without stopping the current one. */
+    public boolean checkIfRichTapEffect(int kind, String reason) {
         if (reason != null && reason.equals(HapticPlayer.VIBRATE_REASON)) {
             return false;
         }
-        if (effect instanceof RichTapVibrationEffect.PatternHeParameter
-                || effect instanceof RichTapVibrationEffect.PatternHe
-                || effect instanceof RichTapVibrationEffect.Envelope
-                || effect instanceof RichTapVibrationEffect.HapticParameter
-                || effect instanceof RichTapVibrationEffect.ExtPrebaked) {
-            return true;
-        } else {
-            return false;
-        }
+        return (getKindFlags(kind) & FLAG_KEEPS_PLAYING) != 0;
     }
 
     void resetHalServiceProxy() {
         sRichtapVibratorService = null;
+        mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+        scheduleReconnect();
+    }
+
+    /* caches the call state, so that reading it on the vibrate path is a volatile read. */
+    private final class CallStateCallback extends TelephonyCallback
+            implements TelephonyCallback.CallStateListener {
+        @Override
+        public void onCallStateChanged(int state) {
+            boolean inCall = state == TelephonyManager.CALL_STATE_RINGING
+                    || state == TelephonyManager.CALL_STATE_OFFHOOK;
+            mInCall = inCall;
+            if (inCall && mLoopPlaying) {
+                Slog.i(TAG, "call state:" + state + ", stop richtap effect loop");
+                // the vibrator manager stops the service holding it too
+                synchronized (RichTapVibratorService.this) {
+                    richTapVibratorStop();
+                }
+            }
+        }
     }
 
     private static final class VibHalDeathRecipient implements IBinder.DeathRecipient {
@@ -377,46 +945,33 @@ public class RichTapVibratorService {
         }
     }
 
-    public boolean checkIfPrevPatternData(SenderId senderId) {
-        if ((senderId.getPid() == mCurrentSenderId.getPid()) &&
-                (senderId.getSeq() == mCurrentSenderId.getSeq())) {
-            return true;
+    /*
+     * arbitrate the actuator between the HE 2.0 streams of concurrent senders, see
+     * RichTapHeStreams. return RESULT_CONTINUE when the wrapper must be appended to the effect
+     * playing, without stopping it, RESULT_DROP when it must not be played at all.
+     */
+    public int admitHeStream(int uid, VibrationEffect effect) {
+        int[] pattern = effect.getRichTapKind() == RichTapVibrationEffect.KIND_PATTERN_HE
+                ? ((RichTapVibrationEffect.PatternHe) effect).getPatternInfo() : null;
+        int result = mHeStreams.admit(uid, pattern, SystemClock.uptimeMillis());
+        if (DEBUG && result == RichTapHeStreams.RESULT_DROP) {
+            Slog.d(TAG, "drop he wrapper of uid:" + uid + " not owning the actuator");
         }
-        return false;
-
+        return result;
     }
 
-    public void setCurrentSenderId(SenderId senderId) {
-        mCurrentSenderId.setPid(senderId.getPid());
-        mCurrentSenderId.setSeq(senderId.getSeq());
-    }
-
-    public void resetCurrentSenderId() {
-        mCurrentSenderId.reset();
-    }
-
-    public SenderId getSenderId(VibrationEffect effect) {
-        if (effect instanceof RichTapVibrationEffect.PatternHe) {
-            RichTapVibrationEffect.PatternHe patternHe = (RichTapVibrationEffect.PatternHe) effect;
-            int[] patternData = patternHe.getPatternInfo();
-            if (patternData != null && patternData.length > 0) {
-                int versionOrType = patternData[0];
-                if (versionOrType == SDK_HAL_NEW_FORMAT_DATA_VERSION) {
-                    int pid = patternData[2];
-                    int seq = patternData[3];
-                    Slog.d(TAG, "get sender id pid:" + pid + " seq:" + seq);
-                    return new SenderId(pid, seq);
-                }
-            }
-        }
-        return null;
+    /* return whether effect is an HE 2.0 wrapper continuing a stream, rather than starting one. */
+    public boolean isHeStreamContinuation(VibrationEffect effect) {
+        return effect.getRichTapKind() == RichTapVibrationEffect.KIND_PATTERN_HE
+                && RichTapHeStreams.isContinuation(
+                        ((RichTapVibrationEffect.PatternHe) effect).getPatternInfo());
     }
 
     public boolean checkIfEffectHe2_0(VibrationEffect effect, String reason){
         if (reason != null && reason.equals(HapticPlayer.VIBRATE_REASON)) {
 	    return false;
         }
-        if (effect instanceof RichTapVibrationEffect.PatternHe) {
+        if (effect.getRichTapKind() == RichTapVibrationEffect.KIND_PATTERN_HE) {
             RichTapVibrationEffect.PatternHe patternHe = (RichTapVibrationEffect.PatternHe) effect;
             int[] patternData = patternHe.getPatternInfo();
             int versionOrType = patternData[0];
@@ -428,7 +983,7 @@ public class RichTapVibratorService {
     }
 
     public boolean checkIfFirstHe2_0Package(VibrationEffect effect) {
-        if (effect instanceof RichTapVibrationEffect.PatternHe) {
+        if (effect.getRichTapKind() == RichTapVibrationEffect.KIND_PATTERN_HE) {
             RichTapVibrationEffect.PatternHe patternHe = (RichTapVibrationEffect.PatternHe) effect;
             int[] patternData = patternHe.getPatternInfo();
             int firstPatternIndexInPackage = patternData[5];//package first pattern index offset
@@ -440,34 +995,245 @@ public class RichTapVibratorService {
         return false;
     }
 
-    static class SenderId {
-        int mPid;
-        int mSeq;
+    /*
+     * HAL callback of one pattern, forwards its result to the client once, with the play time.
+     */
+    private static final class CompletionCallback extends IRichtapCallback.Stub {
+        private final ResultReceiver mReceiver;
+        private final IRichtapCallback mDelegate;
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        private boolean mFinished;
 
-        SenderId(int pid, int seq) {
-            mPid = pid;
-            mSeq = seq;
+        CompletionCallback(ResultReceiver receiver, IRichtapCallback delegate) {
+            mReceiver = receiver;
+            mDelegate = delegate;
         }
 
-        void setPid(int pid) {
+        @Override
+        public void onCallback(int result) {
+            finish(result, /* stopped= */ false);
+            if (mDelegate != null) {
+                try {
+                    mDelegate.onCallback(result);
+                } catch (Exception e) {
+                    Slog.e(TAG, "richtap callback fail.", e);
+                }
+            }
+        }
+
+        void finish(int result, boolean stopped) {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+            }
+            Bundle data = new Bundle();
+            data.putLong(RichTapVibrationEffect.EXTRA_PLAY_TIME_MS,
+                    SystemClock.elapsedRealtime() - mStartTime);
+            data.putBoolean(RichTapVibrationEffect.EXTRA_STOPPED, stopped);
+            mReceiver.send(result, data);
+        }
+
+        @Override
+        public int getInterfaceVersion() {
+            return 1;
+        }
+
+        @Override
+        public String getInterfaceHash() {
+            return "aac_richtap";
+        }
+    }
+
+    /*
+     * performHeParam of a HapticPlayer, -1 keeps the current value of a parameter and (0, 0, 0)
+     * stops the HE loop. updates waiting for the HAL are merged field by field, a stop is never
+     * merged, nor anything queued after it.
+     */
+    private final class HeParamCommand extends RichTapHalDispatcher.Command {
+        // written under the dispatcher queue lock, before the command can be dispatched
+        private int mInterval;
+        private int mAmplitude;
+        private int mFreq;
+
+        HeParamCommand(int uid, int interval, int amplitude, int freq) {
+            super(RichTapHalDispatcher.KIND_HE_PARAM, /* startsEffect= */ false,
+                    RichTapMetrics.OP_PERFORM_HE_PARAM, uid, /* payloadSize= */ 3);
+            mInterval = interval;
+            mAmplitude = amplitude;
+            mFreq = freq;
+        }
+
+        boolean isStop() {
+            return mInterval == 0 && mAmplitude == 0 && mFreq == 0;
+        }
+
+        @Override
+        boolean mergeFrom(RichTapHalDispatcher.Command last) {
+            if (!(last instanceof HeParamCommand)) {
+                return false;
+            }
+            HeParamCommand pending = (HeParamCommand) last;
+            if (isStop() || pending.isStop()) {
+                return false;
+            }
+            mInterval = mInterval == -1 ? pending.mInterval : mInterval;
+            mAmplitude = mAmplitude == -1 ? pending.mAmplitude : mAmplitude;
+            mFreq = mFreq == -1 ? pending.mFreq : mFreq;
+            return true;
+        }
+
+        @Override
+        int call(IRichtapVibrator hal) throws RemoteException {
+            if (DEBUG) {
+                Slog.d(TAG, "aac richtap performHeParam");
+            }
+            hal.performHeParam(mInterval, mAmplitude, mFreq, mCallback);
+            return 0;
+        }
+    }
+
+    /*
+     * HAL callback of every call, a CompletionCallback delegates to it. counts the results the HAL
+     * reports before handing them to the callback of the vibrator manager, if any.
+     */
+    private static final class MetricsCallback extends IRichtapCallback.Stub {
+        private final IRichtapCallback mDelegate;
+        private final RichTapMetrics mMetrics;
+
+        MetricsCallback(IRichtapCallback delegate, RichTapMetrics metrics) {
+            mDelegate = delegate;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public void onCallback(int result) {
+            mMetrics.recordCallback(result);
+            if (mDelegate != null) {
+                try {
+                    mDelegate.onCallback(result);
+                } catch (Exception e) {
+                    Slog.e(TAG, "richtap callback fail.", e);
+                }
+            }
+        }
+
+        @Override
+        public int getInterfaceVersion() {
+            return 1;
+        }
+
+        @Override
+        public String getInterfaceHash() {
+            return "aac_richtap";
+        }
+    }
+
+    /*
+     * HE data prepared by one uid, within its own byte budget, and the death links of the
+     * processes that sent it. Guarded by mPreparedHe.
+     */
+    private final class PreparedHeCache
+            extends LruCache<PreparedHeKey, RichTapVibrationEffect.PreparedHe> {
+        final int mUid;
+        // by the pid the data was prepared under
+        private final SparseArray<SenderDeath> mDeaths = new SparseArray<>();
+
+        PreparedHeCache(int uid) {
+            super(PREPARED_HE_MAX_BYTES_PER_UID);
+            mUid = uid;
+        }
+
+        @Override
+        protected int sizeOf(PreparedHeKey key, RichTapVibrationEffect.PreparedHe value) {
+            int ints = 0;
+            for (int[] block : value.getBlocks()) {
+                ints += block.length;
+            }
+            return ints * Integer.BYTES;
+        }
+
+        /* return false if token is already dead. */
+        boolean linkToDeath(int pid, IBinder token) {
+            if (mDeaths.get(pid) != null) {
+                return true;
+            }
+            SenderDeath death = new SenderDeath(mUid, pid, token);
+            try {
+                token.linkToDeath(death, 0);
+            } catch (RemoteException e) {
+                return false;
+            }
+            mDeaths.put(pid, death);
+            return true;
+        }
+
+        void removePid(int pid) {
+            for (PreparedHeKey key : snapshot().keySet()) {
+                if (key.mPid == pid) {
+                    remove(key);
+                }
+            }
+            SenderDeath death = mDeaths.get(pid);
+            if (death != null) {
+                mDeaths.remove(pid);
+                death.unlink();
+            }
+        }
+
+        void unlinkAll() {
+            for (int i = 0; i < mDeaths.size(); i++) {
+                mDeaths.valueAt(i).unlink();
+            }
+            mDeaths.clear();
+        }
+    }
+
+    private final class SenderDeath implements IBinder.DeathRecipient {
+        private final int mUid;
+        private final int mPid;
+        private final IBinder mToken;
+
+        SenderDeath(int uid, int pid, IBinder token) {
+            mUid = uid;
             mPid = pid;
+            mToken = token;
         }
 
-        int getPid() {
-            return mPid;
+        @Override
+        public void binderDied() {
+            onPreparedHeSenderDied(mUid, mPid);
         }
 
-        void setSeq(int seq) {
-            mSeq = seq;
+        void unlink() {
+            mToken.unlinkToDeath(this, 0);
         }
+    }
+
+    private static final class PreparedHeKey {
+        final int mUid;
+        final int mPid;
+        final int mHandle;
 
-        int getSeq() {
-            return mSeq;
+        PreparedHeKey(int uid, int pid, int handle) {
+            mUid = uid;
+            mPid = pid;
+            mHandle = handle;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PreparedHeKey)) {
+                return false;
+            }
+            PreparedHeKey other = (PreparedHeKey) o;
+            return mUid == other.mUid && mPid == other.mPid && mHandle == other.mHandle;
         }
 
-        void reset() {
-            mPid = 0;
-            mSeq = 0;
+        @Override
+        public int hashCode() {
+            return (mUid * 31 + mPid) * 31 + mHandle;
         }
     }
 }
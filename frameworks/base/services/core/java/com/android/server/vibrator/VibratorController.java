@@ -45,9 +45,11 @@ final class VibratorController {
 
     @GuardedBy("mLock")
     private final NativeWrapper mNativeWrapper;
-    private final static boolean RICHTAP_TAKEOVER_CTL = true;
+    final static boolean RICHTAP_TAKEOVER_CTL = true;
     private static final int DEFAULT_PREBAKED_DURATION = 30;
-    private RichTapVibratorService mRichTapService;
+    // shared by all the vibrators, null when RichTap does not take the control over
+    @Nullable
+    private final RichTapVibratorService mRichTapService;
 
     // Vibrator state listeners that support concurrent updates and broadcasts, but should lock
     // while broadcasting to guarantee delivery order.
@@ -69,16 +71,20 @@ final class VibratorController {
         void onComplete(int vibratorId, long vibrationId);
     }
 
-    VibratorController(int vibratorId, OnVibrationCompleteListener listener) {
-        this(vibratorId, listener, new NativeWrapper());
-        if(RICHTAP_TAKEOVER_CTL){
-            mRichTapService = new RichTapVibratorService(true, null);
-        }
+    VibratorController(int vibratorId, OnVibrationCompleteListener listener,
+            @Nullable RichTapVibratorService richTapService) {
+        this(vibratorId, listener, new NativeWrapper(), richTapService);
     }
 
     @VisibleForTesting
     VibratorController(int vibratorId, OnVibrationCompleteListener listener,
             NativeWrapper nativeWrapper) {
+        this(vibratorId, listener, nativeWrapper, null);
+    }
+
+    VibratorController(int vibratorId, OnVibrationCompleteListener listener,
+            NativeWrapper nativeWrapper, @Nullable RichTapVibratorService richTapService) {
+        mRichTapService = RICHTAP_TAKEOVER_CTL ? richTapService : null;
         mNativeWrapper = nativeWrapper;
         mNativeWrapper.init(vibratorId, listener);
         VibratorInfo.Builder vibratorInfoBuilder = new VibratorInfo.Builder(vibratorId);
@@ -234,9 +240,10 @@ final class VibratorController {
     /** Set the vibration amplitude. This will NOT affect the state of {@link #isVibrating()}. */
     public void setAmplitude(float amplitude) {
         synchronized (mLock) {
-            if (RICHTAP_TAKEOVER_CTL) {
+            if (mRichTapService != null) {
                 int strength = (int)(amplitude * VibrationEffect.MAX_AMPLITUDE);
-                mRichTapService.richTapVibratorSetAmplitude(strength);
+                // waveform steps, sent to the HAL at a fixed cadence rather than one by one
+                mRichTapService.richTapVibratorStreamAmplitude(strength);
             } else {
                 if (mVibratorInfo.hasCapability(IVibrator.CAP_AMPLITUDE_CONTROL)) {
                     mNativeWrapper.setAmplitude(amplitude);
@@ -260,7 +267,7 @@ final class VibratorController {
     public long on(long milliseconds, long vibrationId) {
         long duration = 0;
         synchronized (mLock) {
-            if (RICHTAP_TAKEOVER_CTL) {
+            if (mRichTapService != null) {
                 duration = milliseconds;
                 mRichTapService.richTapVibratorOn(duration);
             } else {
@@ -286,7 +293,7 @@ final class VibratorController {
     public long on(PrebakedSegment prebaked, long vibrationId) {
         long duration = 0;
         synchronized (mLock) {
-            if (RICHTAP_TAKEOVER_CTL) {
+            if (mRichTapService != null) {
                 duration = DEFAULT_PREBAKED_DURATION;
                 mRichTapService.richTapVibratorPerform(prebaked.getEffectId(), (byte)prebaked.getEffectStrength());
             } else {
@@ -32,6 +32,7 @@ import android.hardware.vibrator.IVibrator;
 import android.os.BatteryStats;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.CombinedVibration;
 import android.os.ExternalVibration;
 import android.os.Handler;
@@ -81,7 +82,6 @@ import java.util.function.Consumer;
 import java.util.function.Function;
 //add by AAC for RichTap support
 import com.android.server.vibrator.RichTapVibratorService;
-import com.android.server.vibrator.RichTapVibratorService.SenderId;
 import vendor.aac.hardware.richtap.vibrator.IRichtapVibrator;//aidl
 import vendor.aac.hardware.richtap.vibrator.IRichtapCallback;
 import android.hardware.vibrator.IVibratorCallback;
@@ -152,6 +152,11 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
     private VibrationStepConductor mCurrentVibration;
     @GuardedBy("mLock")
     private VibrationStepConductor mNextVibration;
+    // add by AAC for Richtap support
+    // waveform played as one HE effect by richTapService, tracked here as no conductor runs it
+    @GuardedBy("mLock")
+    private Vibration mCurrentRichTapVibration;
+    //end modify by AAC
     @GuardedBy("mLock")
 // add by AAC for Richtap support
     private final static boolean RICHTAP_JAVA_TO_HIDL = true;
@@ -172,7 +177,8 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             return "aac_richtap";
         }
     };
-    private RichTapVibratorService richTapService = new RichTapVibratorService(RICHTAP_JAVA_TO_HIDL, mRichtapAidlCallback);
+    // the only one, shared with the vibrator controllers
+    private final RichTapVibratorService richTapService = new RichTapVibratorService(RICHTAP_JAVA_TO_HIDL, mRichtapAidlCallback);
 //end modify by AAC
     private ExternalVibrationHolder mCurrentExternalVibration;
     @GuardedBy("mLock")
@@ -197,7 +203,21 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                         mCurrentVibration.notifyCancelled(Vibration.Status.CANCELLED_BY_SCREEN_OFF,
                                 /* immediate= */ false);
                     }
+                    // add by AAC for Richtap support
+                    if (mCurrentRichTapVibration != null
+                            && shouldCancelOnScreenOffLocked(mCurrentRichTapVibration)) {
+                        endRichTapVibrationLocked(Vibration.Status.CANCELLED_BY_SCREEN_OFF,
+                                /* stop= */ true);
+                    }
+                    //end modify by AAC
+                }
+            } else if (intent.getAction().equals(Intent.ACTION_UID_REMOVED)) {
+                // add by AAC for Richtap support
+                int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                if (uid != -1) {
+                    richTapService.onUidRemoved(uid);
                 }
+                //end modify by AAC
             } else if(intent.getAction().equals(RichTapVibratorService.ACTION_CHANGE_MODE)) {
                 int mode = intent.getIntExtra("mode", -1);
                 Slog.i(TAG, "richtap-mode, rec ACTION_CHANGE_MODE, mode:" + mode);
@@ -267,7 +287,8 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             mVibratorIds = vibratorIds;
             mVibrators = new SparseArray<>(mVibratorIds.length);
             for (int vibratorId : vibratorIds) {
-                mVibrators.put(vibratorId, injector.createVibratorController(vibratorId, listener));
+                mVibrators.put(vibratorId,
+                        injector.createVibratorController(vibratorId, listener, richTapService));
             }
         }
 
@@ -282,6 +303,7 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         if (RICHTAP_JAVA_TO_HIDL) {
             filter.addAction(RichTapVibratorService.ACTION_CHANGE_MODE);
+            filter.addAction(Intent.ACTION_UID_REMOVED);
         }
         context.registerReceiver(mIntentReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
 
@@ -303,6 +325,11 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             mInputDeviceDelegate.onSystemReady();
 
             mVibrationSettings.addListener(this::updateServiceState);
+            //add by AAC for Richtap support
+            if (RICHTAP_JAVA_TO_HIDL) {
+                richTapService.onSystemReady(mContext);
+            }
+            //end modify by AAC
 
             // Will update settings and input devices.
             updateServiceState();
@@ -427,6 +454,7 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
     @Nullable
     private Vibration vibrateInternal(int uid, String opPkg, @NonNull CombinedVibration effect,
             @Nullable VibrationAttributes attrs, String reason, IBinder token) {
+        final long entryNanos = System.nanoTime();
         Trace.traceBegin(Trace.TRACE_TAG_VIBRATOR, "vibrate, reason = " + reason);
         try {
             mContext.enforceCallingOrSelfPermission(android.Manifest.permission.VIBRATE, "vibrate");
@@ -435,19 +463,30 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                 Slog.e(TAG, "token must not be null");
                 return null;
             }
+            // add by AAC for Richtap support
+            final int richTapKind = RichTapVibrationEffect.getKind(effect);
+            if (richTapKind == RichTapVibrationEffect.KIND_PATTERN_HE
+                    && appendHeStreamWrapper(uid, effect, entryNanos)) {
+                return null;
+            }
+            //end modify by AAC
             enforceUpdateAppOpsStatsPermission(uid);
             if (!isEffectValid(effect)) {
                 return null;
             }
             // add by AAC for Richtap support
-            if(richTapService.disposeRichtapEffectParams(effect)) {
+            if(richTapService.disposeRichtapEffectParams(uid, token, effect, richTapKind)) {
                 return null;
             }
+            richTapService.markServiceEntry(effect, richTapKind, entryNanos);
             //end modify by AAC
             attrs = fixupVibrationAttributes(attrs, effect);
             Vibration vib = new Vibration(token, mNextVibrationId.getAndIncrement(), effect, attrs,
                     uid, opPkg, reason);
-            fillVibrationFallbacks(vib, effect);
+            if ((RichTapVibratorService.getKindFlags(richTapKind)
+                    & RichTapVibratorService.FLAG_PLAYBACK) == 0) {
+                fillVibrationFallbacks(vib, effect);
+            }
 
             if (attrs.isFlagSet(VibrationAttributes.FLAG_INVALIDATE_SETTINGS_CACHE)) {
                 // Force update of user settings before checking if this vibration effect should
@@ -468,6 +507,7 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
 
                 if (ignoreStatus != null) {
                     endVibrationLocked(vib, ignoreStatus);
+                    richTapService.disposeIgnoredEffect(effect);
                     return vib;
                 }
 
@@ -475,9 +515,18 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                 try {
                     if(RICHTAP_JAVA_TO_HIDL && effect instanceof CombinedVibration.Mono) {
                         VibrationEffect vibrEffect = ((CombinedVibration.Mono)effect).getEffect();
-                        if(!richTapService.checkIfRichTapEffect(vibrEffect, reason)) {
+                        // the next wrapper of the playing stream is appended, not restarted
+                        if(!richTapService.isHeStreamContinuation(vibrEffect)
+                                && !richTapService.checkIfRichTapEffect(richTapKind, reason)) {
                             doStopVibrateLocked();
                         }
+                        if (richTapService.admitHeStream(uid, vibrEffect)
+                                == RichTapHeStreams.RESULT_DROP) {
+                            // wrapper of an HE 2.0 stream another sender took the actuator from
+                            endVibrationLocked(vib, Vibration.Status.IGNORED_SUPERSEDED);
+                            richTapService.disposeIgnoredEffect(effect);
+                            return vib;
+                        }
                     } else {
                         doStopVibrateLocked();
                     }
@@ -485,9 +534,15 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                         mCurrentVibration.notifyCancelled(Vibration.Status.CANCELLED_SUPERSEDED,
                                 /* immediate= */ false);
                     }
-                    Vibration.Status status = startVibrationLocked(vib);
+                    // add by AAC for Richtap support
+                    // the HAL was stopped above, or the new RichTap effect replaces it
+                    endRichTapVibrationLocked(Vibration.Status.CANCELLED_SUPERSEDED,
+                            /* stop= */ false);
+                    //end modify by AAC
+                    Vibration.Status status = startVibrationLocked(vib, richTapKind);
                     if (status != Vibration.Status.RUNNING) {
                         endVibrationLocked(vib, status);
+                        richTapService.disposeIgnoredEffect(effect);
                     }
                     return vib;
                 } finally {
@@ -525,6 +580,13 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                         mCurrentVibration.notifyCancelled(Vibration.Status.CANCELLED_BY_USER,
                                 /* immediate= */false);
                     }
+                    // add by AAC for Richtap support
+                    if (mCurrentRichTapVibration != null
+                            && shouldCancelVibration(mCurrentRichTapVibration, usageFilter, token)) {
+                        endRichTapVibrationLocked(Vibration.Status.CANCELLED_BY_USER,
+                                /* stop= */ false);
+                    }
+                    //end modify by AAC
                     if (mCurrentExternalVibration != null
                             && shouldCancelVibration(
                             mCurrentExternalVibration.externalVibration.getVibrationAttributes(),
@@ -565,6 +627,38 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
         }
     }
 
+    /**
+     * Plays the next wrapper of an HE 2.0 stream the caller opened with its first wrapper.
+     *
+     * <p>The stream is a session: its first wrapper went through the whole vibrate policy, so
+     * the next ones, which are only accepted from the same uid and while the stream still owns
+     * the actuator, skip the attributes, app ops and settings checks and the {@link Vibration}
+     * record, and go straight to the RichTap service.
+     *
+     * @param effect a {@link RichTapVibrationEffect#KIND_PATTERN_HE} effect
+     * @return false if {@code effect} is not such a wrapper, and must take the regular path
+     */
+    private boolean appendHeStreamWrapper(int uid, CombinedVibration effect, long entryNanos) {
+        if (!RICHTAP_JAVA_TO_HIDL || uid != Binder.getCallingUid()) {
+            return false;
+        }
+        VibrationEffect vibrEffect = ((CombinedVibration.Mono) effect).getEffect();
+        if (!richTapService.isHeStreamContinuation(vibrEffect)) {
+            return false;
+        }
+        richTapService.markServiceEntry(effect, RichTapVibrationEffect.KIND_PATTERN_HE, entryNanos);
+        // under mLock so the wrapper can't be queued after a stop that ended its stream
+        synchronized (mLock) {
+            if (richTapService.admitHeStream(uid, vibrEffect)
+                    == RichTapHeStreams.RESULT_CONTINUE) {
+                doVibratorOnPatternHe(vibrEffect, uid);
+            } else {
+                richTapService.disposeIgnoredEffect(effect);
+            }
+        }
+        return true;
+    }
+
     private void dumpText(PrintWriter pw) {
         if (DEBUG) {
             Slog.d(TAG, "Dumping vibrator manager service to text...");
@@ -583,6 +677,10 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             pw.println("    " + (mCurrentVibration == null
                     ? null : mCurrentVibration.getVibration().getDebugInfo()));
             pw.println();
+            pw.println("  mCurrentRichTapVibration:");
+            pw.println("    " + (mCurrentRichTapVibration == null
+                    ? null : mCurrentRichTapVibration.getDebugInfo()));
+            pw.println();
             pw.println("  mNextVibration:");
             pw.println("    " + (mNextVibration == null
                     ? null : mNextVibration.getVibration().getDebugInfo()));
@@ -593,6 +691,8 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             pw.println();
         }
         mVibratorManagerRecords.dumpText(pw);
+        pw.println();
+        richTapService.dump(pw);
     }
 
     synchronized void dumpProto(FileDescriptor fd) {
@@ -605,6 +705,9 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             if (mCurrentVibration != null) {
                 mCurrentVibration.getVibration().getDebugInfo().dumpProto(proto,
                         VibratorManagerServiceDumpProto.CURRENT_VIBRATION);
+            } else if (mCurrentRichTapVibration != null) {
+                mCurrentRichTapVibration.getDebugInfo().dumpProto(proto,
+                        VibratorManagerServiceDumpProto.CURRENT_VIBRATION);
             }
             if (mCurrentExternalVibration != null) {
                 mCurrentExternalVibration.getDebugInfo().dumpProto(proto,
@@ -623,6 +726,7 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                     isUnderExternalControl);
         }
         mVibratorManagerRecords.dumpProto(proto);
+        richTapService.dumpProto(proto);
         proto.flush();
     }
 
@@ -646,6 +750,17 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                 updateAlwaysOnLocked(mAlwaysOnEffects.valueAt(i));
             }
 
+            // add by AAC for Richtap support
+            if (mCurrentRichTapVibration != null) {
+                Vibration vib = mCurrentRichTapVibration;
+                if (inputDevicesChanged
+                        || shouldIgnoreVibrationLocked(vib.uid, vib.opPkg, vib.attrs) != null) {
+                    endRichTapVibrationLocked(Vibration.Status.CANCELLED_BY_SETTINGS_UPDATE,
+                            /* stop= */ true);
+                }
+            }
+            //end modify by AAC
+
             if (mCurrentVibration == null) {
                 return;
             }
@@ -694,17 +809,100 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
     //add by AAC for Richtap support
     private void doVibratorOnEnvelope(int[] relativeTime, int[] scaleArr, int[] freqArr, boolean steepMode, int amplitude, int uid, VibrationAttributes attrs) {
         synchronized (richTapService) {
-            richTapService.richTapVibratorOnEnvelope(relativeTime, scaleArr, freqArr, steepMode, amplitude);
+            richTapService.richTapVibratorOnEnvelope(relativeTime, scaleArr, freqArr, steepMode, amplitude, uid);
         }
     }
 
     private long doVibratorOnPatternHe(VibrationEffect effect, int uid){
         synchronized (richTapService){
-            richTapService.richTapVibratorOnPatternHe(effect);
+            richTapService.richTapVibratorOnPatternHe(effect, uid);
             return 0;
         }
     }
 
+    private boolean doVibratorOnTriggerHe(RichTapVibrationEffect.TriggerHe trigger, int uid){
+        synchronized (richTapService){
+            return richTapService.richTapVibratorOnTriggerHe(uid, trigger);
+        }
+    }
+
+    /*
+     * play a scaled waveform as one HE effect instead of step by step, if it translates exactly.
+     * No conductor runs it, so it is tracked as mCurrentRichTapVibration: started under app ops,
+     * cancelled like mCurrentVibration and ended by the HAL callback. return null if the waveform
+     * is left to a conductor.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private Vibration.Status startRichTapVibrationLocked(Vibration vib) {
+        if (!(vib.getEffect() instanceof CombinedVibration.Mono)) {
+            return null;
+        }
+        VibrationEffect effect = ((CombinedVibration.Mono) vib.getEffect()).getEffect();
+        if (!(effect instanceof VibrationEffect.Composed)) {
+            return null;
+        }
+        VibrationEffect.Composed composed = (VibrationEffect.Composed) effect;
+        int[][] wrappers = richTapService.translateComposed(composed);
+        if (wrappers == null) {
+            return null;
+        }
+        int mode = startAppOpModeLocked(vib.uid, vib.opPkg, vib.attrs);
+        switch (mode) {
+            case AppOpsManager.MODE_ALLOWED:
+                break;
+            case AppOpsManager.MODE_ERRORED:
+                Slog.w(TAG, "Start AppOpsManager operation errored for uid " + vib.uid);
+                return Vibration.Status.IGNORED_ERROR_APP_OPS;
+            default:
+                return Vibration.Status.IGNORED_APP_OPS;
+        }
+        mCurrentRichTapVibration = vib;
+        final long vibrationId = vib.id;
+        synchronized (richTapService) {
+            richTapService.richTapVibratorOnComposed(composed, wrappers, vib.uid,
+                    new ResultReceiver(mHandler) {
+                        @Override
+                        protected void onReceiveResult(int resultCode, Bundle resultData) {
+                            onRichTapVibrationComplete(vibrationId, resultCode, resultData != null
+                                    && resultData.getBoolean(RichTapVibrationEffect.EXTRA_STOPPED));
+                        }
+                    });
+        }
+        return Vibration.Status.RUNNING;
+    }
+
+    private void onRichTapVibrationComplete(long vibrationId, int result, boolean stopped) {
+        synchronized (mLock) {
+            if (mCurrentRichTapVibration == null || mCurrentRichTapVibration.id != vibrationId) {
+                // already ended by whoever stopped it
+                return;
+            }
+            if (DEBUG) {
+                Slog.d(TAG, "RichTap vibration " + vibrationId + " complete, result:" + result
+                        + " stopped:" + stopped);
+            }
+            endRichTapVibrationLocked(result != 0 ? Vibration.Status.IGNORED_ERROR_SCHEDULING
+                    : stopped ? Vibration.Status.CANCELLED_SUPERSEDED
+                    : Vibration.Status.FINISHED, /* stop= */ false);
+        }
+    }
+
+    /* end mCurrentRichTapVibration, if any, stopping the vibrator first if stop is true. */
+    @GuardedBy("mLock")
+    private void endRichTapVibrationLocked(Vibration.Status status, boolean stop) {
+        Vibration vib = mCurrentRichTapVibration;
+        if (vib == null) {
+            return;
+        }
+        mCurrentRichTapVibration = null;
+        if (stop) {
+            doStopVibrateLocked();
+        }
+        endVibrationLocked(vib, status);
+        finishAppOpModeLocked(vib.uid, vib.opPkg);
+    }
+
     private void doStopVibrateLocked() {
         synchronized (richTapService) {
             if (DEBUG){
@@ -731,41 +929,42 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
     }
     // end modify by AAC
 
+    /**
+     * Starts {@code vib}, {@code richTapKind} is the kind of the RichTap effect it plays, see
+     * {@link RichTapVibrationEffect#getKind}.
+     */
     @GuardedBy("mLock")
-    private Vibration.Status startVibrationLocked(Vibration vib) {
+    private Vibration.Status startVibrationLocked(Vibration vib, int richTapKind) {
         Trace.traceBegin(Trace.TRACE_TAG_VIBRATOR, "startVibrationLocked");
         try {
-            CombinedVibration combEffect = vib.getEffect();
-            if (combEffect instanceof CombinedVibration.Mono) {
-                VibrationEffect vibrEffect = ((CombinedVibration.Mono)combEffect).getEffect();
-                if (vibrEffect instanceof RichTapVibrationEffect.ExtPrebaked) {
-                    if(richTapService != null) {
+            if ((RichTapVibratorService.getKindFlags(richTapKind)
+                    & RichTapVibratorService.FLAG_PLAYBACK) != 0) {
+                if (richTapService == null) {
+                    Slog.d(TAG, "richTapService is null or current is calling state, ignore current richtap kind:" + richTapKind);
+                    return Vibration.Status.IGNORED_FOR_RINGTONE;
+                }
+                VibrationEffect vibrEffect = ((CombinedVibration.Mono) vib.getEffect()).getEffect();
+                switch (richTapKind) {
+                    case RichTapVibrationEffect.KIND_EXT_PREBAKED:
                         doVibratorOnExtPrebakedEffectLocked(vibrEffect);
                         return Vibration.Status.RUNNING;
-                    } else {
-                        Slog.d(TAG, "richTapService is null or current is calling state, ignore current ExtPrebaked");
-                        return Vibration.Status.IGNORED_FOR_RINGTONE;
-                    }
-                } else if (vibrEffect instanceof RichTapVibrationEffect.Envelope) {
-                    if(richTapService != null){
+                    case RichTapVibrationEffect.KIND_ENVELOPE:
                         RichTapVibrationEffect.Envelope envelope = (RichTapVibrationEffect.Envelope) vibrEffect;
                         doVibratorOnEnvelope(envelope.getRelativeTimeArr(), envelope.getScaleArr(), envelope.getFreqArr(),
                                 envelope.isSteepMode(), envelope.getAmplitude(), vib.uid, vib.attrs);
                         return Vibration.Status.RUNNING;
-                    } else {
-                        Slog.d(TAG, "richTapService is null or current is calling state, ignore current Envelope");
-                        return Vibration.Status.IGNORED_FOR_RINGTONE;
-                    }
-                } else if (vibrEffect instanceof RichTapVibrationEffect.PatternHe) {
-                    if(richTapService != null){
-                        RichTapVibrationEffect.PatternHe patternHe = (RichTapVibrationEffect.PatternHe) vibrEffect;
+                    case RichTapVibrationEffect.KIND_PATTERN_HE:
                         Slog.d(TAG, "vibratorservice play he");
-                        doVibratorOnPatternHe(patternHe, vib.uid);
+                        doVibratorOnPatternHe(vibrEffect, vib.uid);
                         return Vibration.Status.RUNNING;
-                    }else{
-                        Slog.d(TAG, "richTapService is null or current is calling state, ignore current PatternHe");
-                        return Vibration.Status.IGNORED_FOR_RINGTONE;
-                    }
+                    case RichTapVibrationEffect.KIND_TRIGGER_HE:
+                        Slog.d(TAG, "vibratorservice trigger prepared he");
+                        if (!doVibratorOnTriggerHe((RichTapVibrationEffect.TriggerHe) vibrEffect, vib.uid)) {
+                            return Vibration.Status.IGNORED_ERROR_SCHEDULING;
+                        }
+                        return Vibration.Status.RUNNING;
+                    default:
+                        break;
                 }
             }
             vib.updateEffects(effect -> mVibrationScaler.scale(effect, vib.attrs.getUsage()));
@@ -774,6 +973,15 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             if (inputDevicesAvailable) {
                 return Vibration.Status.FORWARDED_TO_INPUT_DEVICES;
             }
+            // add by AAC for Richtap support
+            // a conductor still cancelling goes first, the waveform then waits as mNextVibration
+            if (RICHTAP_JAVA_TO_HIDL && mCurrentVibration == null) {
+                Vibration.Status status = startRichTapVibrationLocked(vib);
+                if (status != null) {
+                    return status;
+                }
+            }
+            //end modify by AAC
 
             VibrationStepConductor conductor = new VibrationStepConductor(vib, mVibrationSettings,
                     mDeviceVibrationEffectAdapter, mVibrators, mVibrationThreadCallbacks);
@@ -929,12 +1137,15 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
             return Vibration.Status.IGNORED_FOR_EXTERNAL;
         }
 
-        if (mCurrentVibration == null || vib.isRepeating()) {
+        // add by AAC for Richtap support, a waveform played as one HE effect is ongoing as well
+        Vibration currentVibration = mCurrentVibration != null
+                ? mCurrentVibration.getVibration() : mCurrentRichTapVibration;
+        //end modify by AAC
+        if (currentVibration == null || vib.isRepeating()) {
             // Incoming repeating vibrations always take precedence over ongoing vibrations.
             return null;
         }
 
-        Vibration currentVibration = mCurrentVibration.getVibration();
         if (currentVibration.hasEnded()) {
             // Current vibration is finishing up, it should not block incoming vibrations.
             return null;
@@ -1107,9 +1318,8 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
     }
 
     private void fillVibrationFallbacks(Vibration vib, VibrationEffect effect) {
-        if (effect instanceof RichTapVibrationEffect.ExtPrebaked ||
-            effect instanceof RichTapVibrationEffect.Envelope ||
-            effect instanceof RichTapVibrationEffect.PatternHe) {
+        if ((RichTapVibratorService.getKindFlags(effect.getRichTapKind())
+                & RichTapVibratorService.FLAG_PLAYBACK) != 0) {
             return;
         }
         VibrationEffect.Composed composed = (VibrationEffect.Composed) effect;
@@ -1235,7 +1445,11 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
         if (conductor == null) {
             return false;
         }
-        Vibration vib = conductor.getVibration();
+        return shouldCancelOnScreenOffLocked(conductor.getVibration());
+    }
+
+    @GuardedBy("mLock")
+    private boolean shouldCancelOnScreenOffLocked(Vibration vib) {
         return mVibrationSettings.shouldCancelVibrationOnScreenOff(
                 vib.uid, vib.opPkg, vib.attrs.getUsage(), vib.startUptimeMillis);
     }
@@ -1274,8 +1488,9 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
         }
 
         VibratorController createVibratorController(int vibratorId,
-                VibratorController.OnVibrationCompleteListener listener) {
-            return new VibratorController(vibratorId, listener);
+                VibratorController.OnVibrationCompleteListener listener,
+                RichTapVibratorService richTapService) {
+            return new VibratorController(vibratorId, listener, richTapService);
         }
 
         void addService(String name, IBinder service) {
@@ -1702,6 +1917,10 @@ public class VibratorManagerService extends IVibratorManagerService.Stub {
                                 /* immediate= */ true);
                         waitForCompletion = true;
                     }
+                    // add by AAC for Richtap support
+                    endRichTapVibrationLocked(Vibration.Status.CANCELLED_SUPERSEDED,
+                            /* stop= */ true);
+                    //end modify by AAC
                 } else {
                     // At this point we have an externally controlled vibration playing already.
                     // Since the interface defines that only one externally controlled vibration can